@@ -1,5 +1,8 @@
 package com.jing.easydb.backend;
 
+import com.jing.easydb.backend.dm.DataManager;
+import com.jing.easydb.backend.dm.pageCache.PageCache;
+import com.jing.easydb.backend.dm.pageCache.PageCacheOptions;
 import com.jing.easydb.backend.tm.TransactionManager;
 import com.jing.easydb.backend.utils.Panic;
 import com.jing.easydb.common.Error;
@@ -14,36 +17,82 @@ public class Launcher {
     public static final long MB = 1 << 20;
     public static final long GB = 1 << 30;
 
+    // 后台脏页写回的周期
+    public static final long PAGE_WRITER_INTERVAL_MS = 200;
+    // .db 文件预分配的区段大小
+    public static final long EXTENT_SIZE = 4 * MB;
+
     public static void main(String[] args) throws ParseException {
 //        String[] arg = {"-create","D:/EasyDB/mydb"};
         Options options = new Options();
         options.addOption("create", true, "-create DBPath");
+        options.addOption("open", true, "-open DBPath");
+        options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap 使用内存映射的页面缓存");
+        options.addOption("pagesize", true, "-pagesize 8KB，创建数据库时指定页大小，4KB~64KB");
+        options.addOption("compress", false, "-compress 创建数据库时使用压缩存储");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"));
             return;
         }
 
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), cmd.hasOption("mmap"),
+                    parsePageSize(cmd.getOptionValue("pagesize")), cmd.hasOption("compress"));
             return;
         }
     }
 
-    // 用户输入路径，在指定路径下创建数据库
-    private static void createDB(String path) {
+    // 用户输入路径，在指定路径下创建数据库，页大小和是否压缩都记录在数据库文件中，之后打开时沿用
+    private static void createDB(String path, boolean mmap, int pageSize, boolean compress) {
         TransactionManager tm = TransactionManager.create(path);
+        PageCache pc;
+        if (compress) {
+            pc = PageCache.createCompressed(path, DEFALUT_MEM, pageSize);
+        } else if (mmap) {
+            pc = PageCache.createMapped(path, DEFALUT_MEM, pageSize);
+        } else {
+            PageCacheOptions options = PageCacheOptions.defaults();
+            options.pageSize = pageSize;
+            pc = PageCache.create(path, DEFALUT_MEM, options);
+        }
+        DataManager dm = DataManager.create(path, pc, tm);
+        dm.close();
         tm.close();
     }
 
     // 用户传入数据库的路径以及内存大小参数，用来启动数据库
-    private static void openDB(String path, long mem) {
+    // mmap 为 true 时页面缓存使用内存映射的实现，读多写少时可以依赖操作系统的页缓存
+    // 否则使用 PageCacheImpl，并开启后台脏页写回和文件预分配
+    private static void openDB(String path, long mem, boolean mmap) {
         TransactionManager tm = TransactionManager.open(path);
+        final DataManager dm;
+        if (mmap) {
+            dm = DataManager.open(path, mem, tm, true);
+        } else {
+            PageCacheOptions options = PageCacheOptions.defaults();
+            options.pageWriterIntervalMs = PAGE_WRITER_INTERVAL_MS;
+            options.extentSize = EXTENT_SIZE;
+            dm = DataManager.open(path, mem, tm, options);
+        }
+        // 退出时正常关闭：PageOne 记下正常关闭，下次启动不必恢复；停止后台写回，截掉未用完的预分配区段
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            dm.close();
+            tm.close();
+        }));
         System.out.println("================");
     }
 
+    private static int parsePageSize(String sizeStr) {
+        if (sizeStr == null || "".equals(sizeStr)) {
+            return PageCache.PAGE_SIZE;
+        }
+        return (int) parseMem(sizeStr);
+    }
+
     private static long parseMem(String memStr) {
         if (memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -1,123 +1,422 @@
 package com.jing.easydb.backend.common;
 
+import com.jing.easydb.backend.utils.MBeans;
 import com.jing.easydb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存 &
+ * <p>
+ * 命中路径不加锁：在以 long 为键的开放定址表中找到条目后，对条目内嵌的引用计数做一次CAS即可，不装箱、不分配对象。
+ * 全局锁只在加载（占用缓存容量）和驱逐（移除条目）时使用，被驱逐条目的写回在锁外进行。
+ * <p>
+ * 有容量上限（maxResource > 0）的缓存在引用计数归零后仍保留条目，缓存满时按 CLOCK 策略驱逐未被引用的条目；
+ * 不限容量（maxResource = 0）的缓存在引用计数归零时立即写回并移除条目。
+ * <p>
+ * 每个实例的运行统计见 {@link #getStats()}，同时注册为 MBean：com.jing.easydb:type=Cache,name=子类名,id=实例编号，
+ * 实例编号全局唯一，同名的多个缓存互不影响；close 时注销，没有关闭的缓存被回收时也会注销
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+
+    /**
+     * 缓存条目，把缓存的数据、引用个数、加载状态放在一起
+     */
+    static final class Entry<T> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Entry> REFS =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "refs");
+
+        static final int EVICTED = -1;
+        static final int CLEANING = -2;                 // 正在被 forEachIdle 访问，命中路径自旋等待
+
+        final long key;
+        volatile T obj;                                 // 实际缓存的数据，加载完成前为null
+        volatile int refs;                              // 元素的引用个数，EVICTED 表示已被驱逐，CLEANING 表示正被 forEachIdle 访问
+        volatile CompletableFuture<T> loading;          // 不为null表示正在从外存加载，等待者阻塞在它上面
+        volatile CompletableFuture<Void> flushing;      // 被驱逐后在锁外写回，写回完成前同一个 key 的 get 阻塞在它上面
+        volatile boolean referenced;                    // CLOCK 的访问位，命中时置位，时钟指针经过时清除
+        int frame = -1;                                 // 条目在 frames 中的位置，受lock保护
+
+        Entry(long key) {
+            this.key = key;
+            this.refs = 1;                              // 加载者自己持有一个引用
+            this.loading = new CompletableFuture<>();
+        }
+
+        // 不需要加载、直接常驻的条目
+        Entry(long key, T obj) {
+            this.key = key;
+            this.obj = obj;
+        }
+
+        // 引用计数加一，返回加之前的值；条目已被驱逐时返回 EVICTED
+        int retain() {
+            while (true) {
+                int r = refs;
+                if (r == EVICTED) {
+                    return EVICTED;
+                }
+                if (r == CLEANING) {
+                    // forEachIdle 的 action 很短，不值得阻塞
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (REFS.compareAndSet(this, r, r + 1)) {
+                    return r;
+                }
+            }
+        }
+
+        // 引用计数减一，返回减后的值
+        @SuppressWarnings("unchecked")
+        int unretain() {
+            return REFS.decrementAndGet(this);
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean markEvicted() {
+            return REFS.compareAndSet(this, 0, EVICTED);
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean markCleaning() {
+            return REFS.compareAndSet(this, 0, CLEANING);
+        }
+
+        // CLEANING 期间没有其他线程会修改refs
+        void unmarkCleaning() {
+            refs = 0;
+        }
+    }
+
+    private EntryTable<T> cache;                        // 实际缓存的数据
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
+    private int count = 0;                              // 缓存中元素的个数，受lock保护
     private Lock lock;
 
+    // 以下仅在 maxResource > 0 时使用，均受lock保护
+    private Entry<T>[] frames;                          // CLOCK 的环，每个位置放一个常驻条目
+    private int[] freeFrames;                           // 空闲位置栈
+    private int freeTop;                                // 空闲位置个数
+    private int hand;                                   // 时钟指针
+
+    private CacheStats stats;
+    private Cleaner.Cleanable mbean;                    // 关闭或被回收时注销 MBean
+
+    @SuppressWarnings("unchecked")
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
+        cache = new EntryTable<>(maxResource);
         lock = new ReentrantLock();
+        if (maxResource > 0) {
+            frames = (Entry<T>[]) new Entry<?>[maxResource];
+            freeFrames = new int[maxResource];
+            for (int i = 0; i < maxResource; i++) {
+                freeFrames[i] = maxResource - 1 - i;
+            }
+            freeTop = maxResource;
+        }
+        stats = new CacheStats();
+        String name = getClass().getSimpleName();
+        mbean = MBeans.register(this, stats, "Cache", name.isEmpty() ? "AbstractCache" : name);
+    }
+
+    /**
+     * 缓存的运行统计，调用 snapshot() 取得某一时刻的快照
+     */
+    public CacheStats getStats() {
+        return stats;
     }
 
     protected T get(long key) throws Exception {
+        Entry<T> entry;
+        Entry<T> victim = null;
         while (true) {
-            lock.lock();
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                // 即已经有其他的线程在从外存加载数据到缓存，那么本线程就等等吧
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            // 命中路径：不加锁
+            entry = cache.get(key);
+            if (entry != null) {
+                CompletableFuture<T> loading = entry.loading;
+                if (loading != null && !loading.isCompletedExceptionally()) {
+                    // 请求的资源正在被其他线程获取
+                    // 即已经有其他的线程在从外存加载数据到缓存，那么本线程就阻塞在它的future上，加载完成后直接被唤醒
+                    stats.coalescedWaits.increment();
+                    awaitLoading(loading);
                     continue;
                 }
-                continue;
-            }
-            if (cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+                // 加载已经失败的条目被标记为已驱逐，下面 retain 失败后走加载流程
+                int prev = entry.retain();
+                if (prev != Entry.EVICTED) {
+                    // 资源在缓存中，直接返回
+                    if (prev == 0) {
+                        stats.pinned.increment();
+                    }
+                    stats.hits.increment();
+                    if (!entry.referenced) {
+                        entry.referenced = true;
+                    }
+                    return entry.obj;
+                }
+                CompletableFuture<Void> flushing = entry.flushing;
+                if (flushing != null) {
+                    // 条目正在被写回，写回完成、移出表之后才能重新加载，否则会读到旧的内容
+                    flushing.join();
+                    continue;
+                }
+                // 条目刚被驱逐，走加载流程
             }
 
-            // 尝试获取该资源
-            if (maxResource > 0 && count == maxResource) {
+            lock.lock();
+            try {
+                if (cache.get(key) != null) {
+                    // 加锁前已有其他线程开始加载该资源，重新走命中路径
+                    continue;
+                }
+                // 尝试获取该资源
+                entry = new Entry<>(key);
+                if (maxResource > 0) {
+                    victim = allocFrame(entry);
+                }
+                count++;
+                cache.put(entry);
+                break;
+            } finally {
                 lock.unlock();
-                throw Error.CacheFullException;
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
         }
+        flushVictim(victim);
 
+        stats.misses.increment();
+        stats.pinned.increment();
+        CompletableFuture<T> loading = entry.loading;
         T obj = null;
+        long start = System.nanoTime();
         try {
             obj = getForCache(key);
-        } catch (Exception e) {
+        } catch (Throwable e) {
+            stats.pinned.decrement();
             lock.lock();
+            // 加载者持有的是唯一的引用，标记为已驱逐后，之后才找到这个条目的读者不会再使用它
+            entry.refs = Entry.EVICTED;
             count--;
-            getting.remove(key);
+            cache.remove(key, entry);
+            if (maxResource > 0) {
+                freeFrame(entry.frame);
+            }
             lock.unlock();
+            // 加载失败，所有等待该资源的线程一起失败
+            loading.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        stats.loads.record(System.nanoTime() - start);
+        entry.obj = obj;
+        entry.loading = null;
+        loading.complete(obj);
 
         return obj;
     }
 
+    /**
+     * 等待其他线程加载资源，加载失败时抛出加载者遇到的异常
+     * 加载成功后由调用方重新走一遍 get 的流程来增加引用计数
+     */
+    private void awaitLoading(CompletableFuture<T> loading) throws Exception {
+        try {
+            loading.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof java.lang.Error) {
+                throw (java.lang.Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 给 entry 分配一个位置，没有空闲位置则按 CLOCK 策略驱逐一个未被引用的条目
+     * 返回被驱逐的条目，调用方释放lock之后交给 flushVictim 写回；调用时持有lock
+     */
+    private Entry<T> allocFrame(Entry<T> entry) throws Exception {
+        if (freeTop > 0) {
+            entry.frame = freeFrames[--freeTop];
+            frames[entry.frame] = entry;
+            return null;
+        }
+        // 最多转两圈：第一圈清除访问位，第二圈必然能找到访问位已清除且未被引用的条目
+        for (int i = 0; i < 2 * maxResource; i++) {
+            Entry<T> victim = frames[hand];
+            int frame = hand;
+            hand = (hand + 1) % maxResource;
+            if (victim.loading != null || victim.refs != 0) {
+                continue;
+            }
+            if (victim.referenced) {
+                victim.referenced = false;
+                continue;
+            }
+            if (!victim.markEvicted()) {
+                // 刚被命中路径拿走
+                continue;
+            }
+            // 写回完成前 victim 留在表中，挡住同一个 key 的重新加载
+            victim.flushing = new CompletableFuture<>();
+            entry.frame = frame;
+            frames[frame] = entry;
+            count--;
+            stats.evictions.increment();
+            return victim;
+        }
+        // 所有条目都被引用着
+        throw Error.CacheFullException;
+    }
+
+    /**
+     * 写回 allocFrame 驱逐的条目，不持有lock，未命中不必排在磁盘 I/O 后面
+     * 写回完成后把它移出表，唤醒等待同一个 key 的线程
+     */
+    private void flushVictim(Entry<T> victim) {
+        if (victim == null) {
+            return;
+        }
+        try {
+            writeBack(victim.obj);
+        } finally {
+            lock.lock();
+            try {
+                cache.remove(victim.key, victim);
+            } finally {
+                lock.unlock();
+            }
+            victim.flushing.complete(null);
+        }
+    }
+
+    // 调用 releaseForCache 并记录耗时
+    private void writeBack(T obj) {
+        long start = System.nanoTime();
+        releaseForCache(obj);
+        stats.flushes.record(System.nanoTime() - start);
+    }
+
+    private void freeFrame(int frame) {
+        frames[frame] = null;
+        freeFrames[freeTop++] = frame;
+    }
+
     /**
      * 强行释放一个缓存
+     * 有容量上限的缓存只减少引用计数，条目继续常驻，等缓存满时再被驱逐
      */
     protected void release(long key) {
+        Entry<T> entry = cache.get(key);
+        if (entry.unretain() > 0) {
+            return;
+        }
+        stats.pinned.decrement();
+        if (maxResource > 0) {
+            return;
+        }
         lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            // 引用计数归零后，可能又被其他线程在命中路径上拿到，CAS失败就交给最后一个释放者
+            if (entry.markEvicted()) {
+                cache.remove(key, entry);
                 count--;
-            } else {
-                references.put(key, ref);
+                stats.evictions.increment();
+                writeBack(entry.obj);
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 把一个新建的、不需要从外存加载的资源直接放进缓存，引用计数为0，之后和普通条目一样被命中、驱逐
+     * 已经在缓存中，或者缓存已满且全部被引用时返回false，由调用方自行处理；只对有容量上限的缓存有效
+     */
+    protected boolean install(long key, T obj) {
+        if (maxResource == 0) {
+            return false;
+        }
+        Entry<T> victim;
+        lock.lock();
+        try {
+            if (cache.get(key) != null) {
+                return false;
+            }
+            Entry<T> entry = new Entry<>(key, obj);
+            try {
+                victim = allocFrame(entry);
+            } catch (Exception e) {
+                return false;
+            }
+            count++;
+            cache.put(entry);
+        } finally {
+            lock.unlock();
+        }
+        flushVictim(victim);
+        return true;
+    }
+
+    /**
+     * 遍历当前没有被引用的条目，action 执行期间该条目既不会被命中路径拿走，也不会被驱逐，
+     * 用于后台写回等需要看到条目稳定内容的场景，action 应当尽快返回
+     * action 返回 false 时停止遍历；不限容量的缓存没有常驻的未引用条目，直接返回
+     */
+    protected void forEachIdle(Predicate<T> action) {
+        if (maxResource == 0) {
+            return;
+        }
+        boolean[] stop = new boolean[1];
+        cache.forEach(entry -> {
+            if (stop[0] || entry.loading != null || entry.refs != 0 || !entry.markCleaning()) {
+                return;
+            }
+            try {
+                stop[0] = !action.test(entry.obj);
+            } finally {
+                entry.unmarkCleaning();
+            }
+        });
+    }
+
     /**
      * 关闭缓存，写回所有资源
      */
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            cache.forEach(entry -> {
+                // 正在写回的已驱逐条目由驱逐它的线程负责
+                if (entry.loading == null && entry.flushing == null) {
+                    writeBack(entry.obj);
+                }
+            });
+            cache.clear();
+            count = 0;
+            if (maxResource > 0) {
+                for (int i = 0; i < maxResource; i++) {
+                    frames[i] = null;
+                    freeFrames[i] = maxResource - 1 - i;
+                }
+                freeTop = maxResource;
             }
         } finally {
             lock.unlock();
         }
+        mbean.clean();
     }
 
 
@@ -0,0 +1,139 @@
+package com.jing.easydb.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AbstractCache 的运行统计
+ * 计数器都是 LongAdder，命中路径上只有一次无锁的累加，可以在生产环境常开
+ */
+public class CacheStats implements CacheStatsMXBean {
+
+    final LongAdder hits = new LongAdder();             // 命中次数
+    final LongAdder misses = new LongAdder();           // 未命中、由本线程加载的次数
+    final LongAdder coalescedWaits = new LongAdder();   // 未命中、等待其他线程加载的次数
+    final LongAdder evictions = new LongAdder();        // 驱逐次数
+    final LongAdder pinned = new LongAdder();           // 当前引用计数大于0的条目个数
+    private final LongAdder dirtyWriteBacks = new LongAdder(); // 驱逐时写回脏数据的次数，由子类记录
+
+    final LatencyHistogram loads = new LatencyHistogram();   // getForCache 耗时
+    final LatencyHistogram flushes = new LatencyHistogram(); // releaseForCache 耗时
+
+    /**
+     * 子类在 releaseForCache 中真正写回了脏数据时调用
+     */
+    public void recordDirtyWriteBack() {
+        dirtyWriteBacks.increment();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getCoalescedWaits() {
+        return coalescedWaits.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getDirtyWriteBacks() {
+        return dirtyWriteBacks.sum();
+    }
+
+    @Override
+    public long getPinned() {
+        return pinned.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum() + coalescedWaits.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.getCount();
+    }
+
+    @Override
+    public long getLoadMeanNanos() {
+        return loads.getMeanNanos();
+    }
+
+    @Override
+    public long getLoadP99Nanos() {
+        return loads.getQuantileNanos(0.99);
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushes.getCount();
+    }
+
+    @Override
+    public long getFlushMeanNanos() {
+        return flushes.getMeanNanos();
+    }
+
+    @Override
+    public long getFlushP99Nanos() {
+        return flushes.getQuantileNanos(0.99);
+    }
+
+    /**
+     * 某一时刻的统计快照
+     */
+    public static class Snapshot {
+        public final long hits;
+        public final long misses;
+        public final long coalescedWaits;
+        public final long evictions;
+        public final long dirtyWriteBacks;
+        public final long pinned;
+        public final long loadCount;
+        public final long loadMeanNanos;
+        public final long loadP99Nanos;
+        public final long flushCount;
+        public final long flushMeanNanos;
+        public final long flushP99Nanos;
+
+        Snapshot(CacheStats s) {
+            hits = s.getHits();
+            misses = s.getMisses();
+            coalescedWaits = s.getCoalescedWaits();
+            evictions = s.getEvictions();
+            dirtyWriteBacks = s.getDirtyWriteBacks();
+            pinned = s.getPinned();
+            loadCount = s.getLoadCount();
+            loadMeanNanos = s.getLoadMeanNanos();
+            loadP99Nanos = s.getLoadP99Nanos();
+            flushCount = s.getFlushCount();
+            flushMeanNanos = s.getFlushMeanNanos();
+            flushP99Nanos = s.getFlushP99Nanos();
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", coalescedWaits=" + coalescedWaits
+                    + ", evictions=" + evictions + ", dirtyWriteBacks=" + dirtyWriteBacks + ", pinned=" + pinned
+                    + ", loads=" + loadCount + " (mean " + loadMeanNanos + "ns, p99 " + loadP99Nanos + "ns)"
+                    + ", flushes=" + flushCount + " (mean " + flushMeanNanos + "ns, p99 " + flushP99Nanos + "ns)";
+        }
+    }
+}
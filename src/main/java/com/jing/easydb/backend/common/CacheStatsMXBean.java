@@ -0,0 +1,33 @@
+package com.jing.easydb.backend.common;
+
+/**
+ * 缓存统计的 JMX 接口，每个 AbstractCache 实例注册一个
+ * ObjectName: com.jing.easydb:type=Cache,name=子类名,id=实例编号
+ */
+public interface CacheStatsMXBean {
+    long getHits();
+
+    long getMisses();
+
+    long getCoalescedWaits();
+
+    long getEvictions();
+
+    long getDirtyWriteBacks();
+
+    long getPinned();
+
+    double getHitRatio();
+
+    long getLoadCount();
+
+    long getLoadMeanNanos();
+
+    long getLoadP99Nanos();
+
+    long getFlushCount();
+
+    long getFlushMeanNanos();
+
+    long getFlushP99Nanos();
+}
@@ -0,0 +1,146 @@
+package com.jing.easydb.backend.common;
+
+import com.jing.easydb.backend.common.AbstractCache.Entry;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 以基本类型 long 为键、开放定址（线性探测）的哈希表，存放 AbstractCache 的条目
+ * 键直接取自条目本身，查找过程不装箱、不分配对象
+ * <p>
+ * get 不加锁；put/remove/clear 由 AbstractCache 的全局锁串行化。
+ * 删除留下墓碑，扩容时整体换一张新表。查找结束时表已经被换掉就在新表上重查，
+ * 查找返回之后条目仍可能被移除，调用方要根据条目自身的状态（已驱逐、加载失败）判断，必要时加锁后重新确认。
+ */
+class EntryTable<T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final Entry TOMBSTONE = new Entry<>(0);
+
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile AtomicReferenceArray<Entry<T>> table;
+    private int size;                                   // 有效条目个数
+    private int used;                                   // 有效条目 + 墓碑个数，不超过表长的一半
+
+    EntryTable(int expectedSize) {
+        table = new AtomicReferenceArray<>(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int size) {
+        int cap = MIN_CAPACITY;
+        while (cap < size * 4) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    Entry<T> get(long key) {
+        while (true) {
+            AtomicReferenceArray<Entry<T>> tab = table;
+            Entry<T> e = find(tab, key);
+            // 旧表在换掉之后不再更新，可能还留着已经移除的条目
+            if (tab == table) {
+                return e;
+            }
+        }
+    }
+
+    private static <T> Entry<T> find(AtomicReferenceArray<Entry<T>> tab, long key) {
+        int mask = tab.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Entry<T> e = tab.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e != TOMBSTONE && e.key == key) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * 插入一个表中不存在的键
+     */
+    @SuppressWarnings("unchecked")
+    void put(Entry<T> entry) {
+        if ((used + 1) * 2 > table.length()) {
+            rehash(size + 1);
+        }
+        AtomicReferenceArray<Entry<T>> tab = table;
+        int mask = tab.length() - 1;
+        for (int i = hash(entry.key) & mask; ; i = (i + 1) & mask) {
+            Entry<T> e = tab.get(i);
+            if (e == null || e == TOMBSTONE) {
+                tab.set(i, entry);
+                if (e == null) {
+                    used++;
+                }
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 移除键对应的条目，只有表中存放的正是 entry 时才移除
+     */
+    @SuppressWarnings("unchecked")
+    void remove(long key, Entry<T> entry) {
+        AtomicReferenceArray<Entry<T>> tab = table;
+        int mask = tab.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Entry<T> e = tab.get(i);
+            if (e == null) {
+                return;
+            }
+            if (e == entry) {
+                tab.set(i, TOMBSTONE);
+                size--;
+                return;
+            }
+        }
+    }
+
+    void forEach(Consumer<Entry<T>> action) {
+        AtomicReferenceArray<Entry<T>> tab = table;
+        for (int i = 0; i < tab.length(); i++) {
+            Entry<T> e = tab.get(i);
+            if (e != null && e != TOMBSTONE) {
+                action.accept(e);
+            }
+        }
+    }
+
+    void clear() {
+        table = new AtomicReferenceArray<>(table.length());
+        size = 0;
+        used = 0;
+    }
+
+    // 换一张新表，顺带清掉墓碑
+    private void rehash(int expectedSize) {
+        AtomicReferenceArray<Entry<T>> old = table;
+        AtomicReferenceArray<Entry<T>> tab = new AtomicReferenceArray<>(capacityFor(expectedSize));
+        int mask = tab.length() - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Entry<T> e = old.get(j);
+            if (e == null || e == TOMBSTONE) {
+                continue;
+            }
+            int i = hash(e.key) & mask;
+            while (tab.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            tab.set(i, e);
+        }
+        used = size;
+        table = tab;
+    }
+}
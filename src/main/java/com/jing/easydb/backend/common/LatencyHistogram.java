@@ -0,0 +1,70 @@
+package com.jing.easydb.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按2的幂分桶的延迟直方图，单位纳秒
+ * 第 i 个桶统计 [2^i, 2^(i+1)) 纳秒的样本，记录时只对一个 LongAdder 加一，不加锁
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;              // 2^40ns 约18分钟，足够了
+
+    private final LongAdder[] buckets;
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+
+    public LatencyHistogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        totalNanos = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 1) {
+            nanos = 1;
+        }
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    /**
+     * 返回分位数所在桶的上界，精度为2倍
+     *
+     * @param quantile 0~1 之间的分位数
+     */
+    public long getQuantileNanos(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKETS;
+    }
+}
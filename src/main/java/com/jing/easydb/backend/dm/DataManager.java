@@ -4,6 +4,7 @@ import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.dm.logger.Logger;
 import com.jing.easydb.backend.dm.page.PageOne;
 import com.jing.easydb.backend.dm.pageCache.PageCache;
+import com.jing.easydb.backend.dm.pageCache.PageCacheOptions;
 import com.jing.easydb.backend.tm.TransactionManager;
 
 public interface DataManager {
@@ -11,9 +12,31 @@ public interface DataManager {
     long insert(long xid, byte[] data) throws Exception;
     void close();
 
+    // 释放数据项，之后 read 返回 null；调用方保证已经没有人在使用它
+    void free(long xid, long uid) throws Exception;
+
+    // insert 能接受的最大数据长度，即一个数据项独占一页时的长度
+    int maxDataSize();
+
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        // 创建一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, false);
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mmap) {
+        // 创建一个PageCache实例，path是文件路径，mem是内存大小，mmap为true时使用内存映射的实现
+        PageCache pc = mmap ? PageCache.createMapped(path, mem) : PageCache.create(path, mem);
+        return create(path, pc, tm);
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, PageCacheOptions options) {
+        if (options.compression) {
+            return create(path, PageCache.createCompressed(path, mem, options.pageSize), tm);
+        }
+        return create(path, PageCache.create(path, mem, options), tm);
+    }
+
+    // 在已创建好的PageCache上创建DataManager
+    public static DataManager create(String path, PageCache pc, TransactionManager tm) {
         // 创建一个Logger实例，path是文件路径
         Logger lg = Logger.create(path);
         // 创建一个DataManagerImpl实例，
@@ -27,8 +50,31 @@ public interface DataManager {
 
     // 静态方法，用于打开已存在的DataManager实例
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        // 打开一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, false);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        if (!mmap || PageCache.isCompressed(path)) {
+            // 压缩存储的数据库不能按页直接映射
+            return open(path, mem, tm, PageCacheOptions.defaults());
+        }
+        // 打开一个PageCache实例，path是文件路径，mem是内存大小，mmap为true时使用内存映射的实现
+        // 页大小以文件头中记录的为准
+        PageCache pc = PageCache.openMapped(path, mem, PageOne.readPageSize(path));
+        return open(path, pc, tm);
+    }
+
+    // 页大小以文件头中记录的为准，会覆盖 options.pageSize；压缩存储的数据库忽略 options
+    public static DataManager open(String path, long mem, TransactionManager tm, PageCacheOptions options) {
+        if (PageCache.isCompressed(path)) {
+            return open(path, PageCache.openCompressed(path, mem), tm);
+        }
+        options.pageSize = PageOne.readPageSize(path);
+        return open(path, PageCache.open(path, mem, options), tm);
+    }
+
+    // 在已打开的PageCache上打开DataManager
+    public static DataManager open(String path, PageCache pc, TransactionManager tm) {
         // 打开一个Logger实例，path是文件路径
         Logger lg = Logger.open(path);
         // 创建一个DataManagerImpl实例，
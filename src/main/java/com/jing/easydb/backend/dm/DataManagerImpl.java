@@ -1,6 +1,7 @@
 package com.jing.easydb.backend.dm;
 
 import com.jing.easydb.backend.common.AbstractCache;
+import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.dm.dataItem.DataItemImpl;
 import com.jing.easydb.backend.dm.logger.Logger;
@@ -22,13 +23,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    int pageSize;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pageSize = pc.getPageSize();
+        this.pIndex = new PageIndex(pageSize);
     }
 
     // 从缓存中拿取数据
@@ -48,7 +51,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         // 将输入的数据包装成DataItem的原始格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
         // 如果数据项的大小超过了页面的最大空闲空间，抛出异常
-        if (raw.length > PageX.MAX_FREE_SPACE) {
+        if (raw.length > PageX.maxFreeSpace(pageSize)) {
             throw Error.DataTooLargeException;
         }
 
@@ -62,8 +65,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 break;
             } else {
                 // 如果没有找到合适的页面，创建一个新的页面，并将其添加到页面索引中
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = pc.newPage(PageX.initRaw(pageSize));
+                pIndex.add(newPgno, PageX.maxFreeSpace(pageSize));
             }
         }
         // 如果还是没有找到合适的页面，抛出异常
@@ -84,7 +87,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             logger.log(log);
 
             // 在页面中插入新的数据项，并获取其在页面中的偏移量
-            short offset = PageX.insert(pg, raw);
+            int offset = PageX.insert(pg, raw);
 
             // 释放页面
             pg.release();
@@ -101,6 +104,39 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 把数据项标记为非法并记录日志；数据项独占一页时（如 B+ 树的结点）记录日志后清空这一页，
+     * 替换它在 PageIndex 中的旧项，供之后的 insert 使用。其他数据项占用的空间在页内无法单独回收
+     */
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        DataItem di = super.get(uid);
+        boolean pageFreed;
+        try {
+            di.before();
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(xid);
+            SubArray raw = di.getRaw();
+            Page pg = di.page();
+            pageFreed = PageX.ownsPage(pg, raw.start, raw.end - raw.start);
+            if (pageFreed) {
+                logger.log(Recover.freePageLog(xid, pg));
+                PageX.free(pg);
+            }
+        } finally {
+            // 最后一个引用释放后数据项从缓存中移除，同一位置上新插入的数据项会被重新解析
+            di.release();
+        }
+        if (pageFreed) {
+            pIndex.replace(Types.uidToPgno(uid), PageX.maxFreeSpace(pageSize));
+        }
+    }
+
+    @Override
+    public int maxDataSize() {
+        return DataItem.maxDataSize(PageX.maxFreeSpace(pageSize));
+    }
+
     @Override
     public void close() {
         super.close();
@@ -131,10 +167,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     protected DataItem getForCache(long uid) throws Exception {
         // 计算页内偏移量
-        short offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
+        int offset = Types.uidToOffset(uid);
         // 计算页号
-        int pgno = (int) (uid & ((1L << 32) - 1));
+        int pgno = Types.uidToPgno(uid);
         // 从页缓存中拿到页面对象,如果页缓存不在内存中，则加载页面到缓存中
         Page pg = pc.getPage(pgno);
         // 根据偏移量从页面中提取数据项
@@ -156,7 +191,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 刚创建.db文件时，文件大小是0，没有页面存储
     // 初始化第一页，有妙用
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pageSize));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -173,6 +208,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        if (PageOne.getPageSize(pageOne) != pageSize) {
+            // 页大小与创建时不一致，整个文件都会被错误地切分
+            Panic.panic(Error.BadDbFileException);
+        }
         return PageOne.checkVc(pageOne);
     }
 
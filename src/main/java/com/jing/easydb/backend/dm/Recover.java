@@ -1,6 +1,5 @@
 package com.jing.easydb.backend.dm;
 
-import com.google.common.primitives.Bytes;
 import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.dm.logger.Logger;
@@ -9,6 +8,7 @@ import com.jing.easydb.backend.dm.page.PageX;
 import com.jing.easydb.backend.dm.pageCache.PageCache;
 import com.jing.easydb.backend.tm.TransactionManager;
 import com.jing.easydb.backend.utils.Panic;
+import com.jing.easydb.backend.utils.Types;
 import com.jing.easydb.common.Parser;
 
 
@@ -32,14 +32,14 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] raw;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] oldRaw;
         byte[] newRaw;
     }
@@ -170,22 +170,38 @@ public class Recover {
      * @return 更新日志，包含日志类型、事务ID、DataItem的唯一标识符、旧原始数据和新原始数据
      */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE}; // 创建一个表示日志类型的字节数组，并设置其值为LOG_TYPE_UPDATE
-        byte[] xidRaw = Parser.long2Byte(xid); // 将事务ID转换为字节数组
-        byte[] uidRaw = Parser.long2Byte(di.getUid()); // 将DataItem对象的唯一标识符转换为字节数组
         byte[] oldRaw = di.getOldRaw(); // 获取DataItem对象的旧原始数据
         SubArray raw = di.getRaw(); // 获取DataItem对象的新原始数据
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end); // 将新原始数据转换为字节数组
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw); // 将所有字节数组连接在一起，形成一个完整的更新日志，并返回这个日志
+        // 直接按格式写进一个数组，不为各个字段单独分配
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length + (raw.end - raw.start)];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW + oldRaw.length, raw.end - raw.start);
+        return log;
+    }
+
+    /**
+     * 清空页面的日志：把页头的 FSO 改回数据区开头，写成一条指向页内偏移 FSO_OFFSET 的更新日志，
+     * 重做和撤销都按原样覆盖页头，不需要新的日志类型。之后在这一页的插入按日志中的偏移重做，FSO 随之恢复
+     */
+    public static byte[] freePageLog(long xid, Page pg) {
+        byte[] log = new byte[OF_UPDATE_RAW + PageX.FSO_LENGTH * 2];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, Types.addressToUid(pg.getPageNumber(), PageX.FSO_OFFSET));
+        System.arraycopy(pg.getData(), PageX.FSO_OFFSET, log, OF_UPDATE_RAW, PageX.FSO_LENGTH);
+        Parser.putInt(log, OF_UPDATE_RAW + PageX.FSO_LENGTH, PageX.emptyFSO());
+        return log;
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        li.pgno = (int) (uid & ((1L << 32) - 1));
+        li.xid = Parser.getLong(log, OF_XID);
+        long uid = Parser.getLong(log, OF_UPDATE_UID);
+        li.offset = Types.uidToOffset(uid);
+        li.pgno = Types.uidToPgno(uid);
         int length = (log.length - OF_UPDATE_RAW) / 2;
         li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
         li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
@@ -194,7 +210,7 @@ public class Recover {
 
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno; // 用于存储页面编号
-        short offset; // 用于存储偏移量
+        int offset; // 用于存储偏移量
         byte[] raw; // 用于存储原始数据
         if (flag == REDO) {
             // 如果是重做操作，解析日志记录，获取更新日志信息，主要获取新数据
@@ -228,27 +244,25 @@ public class Recover {
     // [LogType] [XID] [Pgno] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 4;
 
     // 定义一个静态方法，用于创建插入日志
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        // 创建一个表示日志类型的字节数组，并设置其值为LOG_TYPE_INSERT
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        // 将事务ID转换为字节数组
-        byte[] xidRaw = Parser.long2Byte(xid);
-        // 将页面编号转换为字节数组
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        // 获取页面的第一个空闲空间的偏移量，并将其转换为字节数组
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        // 将所有字节数组连接在一起，形成一个完整的插入日志，并返回这个日志
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] log = new byte[OF_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        // 页面的第一个空闲空间的偏移量，即数据将要插入的位置
+        Parser.putInt(log, OF_INSERT_OFFSET, PageX.getFSO(pg));
+        System.arraycopy(raw, 0, log, OF_INSERT_RAW, raw.length);
+        return log;
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.xid = Parser.getLong(log, OF_XID);
+        li.pgno = Parser.getInt(log, OF_INSERT_PGNO);
+        li.offset = Parser.getInt(log, OF_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
@@ -1,14 +1,11 @@
 package com.jing.easydb.backend.dm.dataItem;
 
-import com.google.common.primitives.Bytes;
 import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.DataManagerImpl;
 import com.jing.easydb.backend.dm.page.Page;
 import com.jing.easydb.backend.utils.Types;
 import com.jing.easydb.common.Parser;
 
-import java.util.Arrays;
-
 public interface DataItem {
     SubArray data();
 
@@ -28,6 +25,18 @@ public interface DataItem {
 
     void rUnLock();
 
+    // 不等待的读锁，锁不到时立即返回 false
+    boolean tryRLock();
+
+    /**
+     * 开始一次不加锁的乐观读，返回数据项当前的版本；正被修改(持有写锁)时返回 0，此时只能加读锁读取。
+     * 读完后用 {@link #validate(long)} 确认期间没有写入，否则读到的内容可能不完整，要丢弃重读
+     */
+    long optimisticRead();
+
+    // 自 optimisticRead 返回 version 以来数据项没有被修改过
+    boolean validate(long version);
+
     Page page();
 
     long getUid();
@@ -41,23 +50,29 @@ public interface DataItem {
      * dataItem 结构如下：
      * [ValidFlag] [DataSize] [Data]
      * ValidFlag 1字节，0为合法 1为非法
-     * DataSize  2字节，标识Data的长度
+     * DataSize  2字节，标识Data的长度，按无符号数解析
      *
      * @param raw 原始数据
      * @return 包装后 DataItem对应的数据
      */
 
     static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1]; // 初始为不合法数据
-        byte[] size = Parser.short2Byte((short) raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] item = new byte[DataItemImpl.OF_DATA + raw.length]; // ValidFlag 初始为0
+        Parser.putShort(item, DataItemImpl.OF_SIZE, (short) raw.length);
+        System.arraycopy(raw, 0, item, DataItemImpl.OF_DATA, raw.length);
+        return item;
+    }
+
+    // 大小为 space 的空间里能放下的最大数据长度
+    static int maxDataSize(int space) {
+        return space - DataItemImpl.OF_DATA;
     }
 
     // 从页面的offset处解析出DataItem
-    static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    static DataItem parseDataItem(Page pg, int offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
+        int size = pg.buffer().getShort(offset + DataItemImpl.OF_SIZE) & 0xFFFF;
+        int length = size + DataItemImpl.OF_DATA;
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
 
@@ -67,5 +82,9 @@ public interface DataItem {
         raw[DataItemImpl.OF_VALID] = (byte) 1;
     }
 
+    static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte) 1;
+    }
+
 
 }
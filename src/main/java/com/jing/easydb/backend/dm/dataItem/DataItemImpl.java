@@ -4,8 +4,8 @@ import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.DataManagerImpl;
 import com.jing.easydb.backend.dm.page.Page;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
@@ -13,7 +13,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
  * ValidFlag 1字节，0为合法，1为非法
- * DataSize  2字节，标识Data的长度
+ * DataSize  2字节，标识Data的长度，按无符号数解析
  */
 public class DataItemImpl implements DataItem {
 
@@ -28,8 +28,11 @@ public class DataItemImpl implements DataItem {
 
     private byte[] oldRaw;
 
+    private ReentrantReadWriteLock lock;
     private Lock rLock;
     private Lock wLock;
+    // 乐观读的版本，持有写锁期间为奇数，每次获取和释放最外层的写锁时加一，只由写锁的持有者修改
+    private volatile long version = 2;
 
     private DataManagerImpl dm;
 
@@ -41,7 +44,7 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
+        lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
         this.dm = dm;
@@ -64,7 +67,7 @@ public class DataItemImpl implements DataItem {
     // 在修改数据项之前调用，用于锁定数据项并保存数据
     @Override
     public void before() {
-        wLock.lock();
+        wLockAndBump();
         pg.setDirty(true);
         //保存原始数据的副本，以便在需要时进行回滚
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -74,14 +77,14 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        bumpAndWUnlock();
     }
 
     // 修改完数据项后，记录日志并解锁数据项
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
-        wLock.unlock();
+        bumpAndWUnlock();
     }
 
     @Override
@@ -91,14 +94,44 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void lock() {
-        wLock.lock();
+        wLockAndBump();
     }
 
     @Override
     public void unlock() {
+        bumpAndWUnlock();
+    }
+
+    // 写锁可重入，只有最外层的获取和释放改变版本
+    private void wLockAndBump() {
+        wLock.lock();
+        if (lock.getWriteHoldCount() == 1) {
+            version++;
+            // 之后对 raw 的写入不能被重排到版本变为奇数之前
+            VarHandle.releaseFence();
+        }
+    }
+
+    private void bumpAndWUnlock() {
+        if (lock.getWriteHoldCount() == 1) {
+            version++;
+        }
         wLock.unlock();
     }
 
+    @Override
+    public long optimisticRead() {
+        long v = version;
+        return (v & 1) == 0 ? v : 0;
+    }
+
+    @Override
+    public boolean validate(long version) {
+        // 保证乐观读期间对 raw 的读取不会被重排到这次版本检查之后
+        VarHandle.acquireFence();
+        return version != 0 && this.version == version;
+    }
+
     @Override
     public void rLock() {
         rLock.lock();
@@ -109,6 +142,11 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public boolean tryRLock() {
+        return rLock.tryLock();
+    }
+
     @Override
     public Page page() {
         return pg;
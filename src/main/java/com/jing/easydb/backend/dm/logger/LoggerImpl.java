@@ -1,6 +1,5 @@
 package com.jing.easydb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import com.jing.easydb.backend.utils.Panic;
 import com.jing.easydb.common.Error;
 import com.jing.easydb.common.Parser;
@@ -110,8 +109,13 @@ public class LoggerImpl implements Logger {
     }
 
     private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+        return calChecksum(xCheck, log, 0, log.length);
+    }
+
+    // 只计算 log[from, to) 部分，不用先拷贝出来
+    private int calChecksum(int xCheck, byte[] log, int from, int to) {
+        for (int i = from; i < to; i++) {
+            xCheck = xCheck * SEED + log[i];
         }
         return xCheck;
     }
@@ -145,9 +149,11 @@ public class LoggerImpl implements Logger {
     }
 
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+        byte[] log = new byte[OF_DATA + data.length];
+        Parser.putInt(log, OF_SIZE, data.length);
+        Parser.putInt(log, OF_CHECKSUM, calChecksum(0, data));
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        return log;
     }
 
     @Override
@@ -174,7 +180,7 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int size = Parser.parseInt(tmp.array());
+        int size = Parser.getInt(tmp.array(), 0);
         if (position + size + OF_DATA > fileSize) {
             return null;
         }
@@ -188,8 +194,8 @@ public class LoggerImpl implements Logger {
         }
 
         byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int checkSum1 = calChecksum(0, log, OF_DATA, log.length);
+        int checkSum2 = Parser.getInt(log, OF_CHECKSUM);
         if (checkSum1 != checkSum2) {
             return null;
         }
@@ -1,5 +1,7 @@
 package com.jing.easydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
 
@@ -15,4 +17,7 @@ public interface Page {
 
     byte[] getData();
 
+    // 页数据的 ByteBuffer 视图，与 getData() 共享同一块内存，只能用绝对位置读写
+    ByteBuffer buffer();
+
 }
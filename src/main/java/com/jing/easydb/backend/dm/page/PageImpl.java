@@ -2,6 +2,7 @@ package com.jing.easydb.backend.dm.page;
 
 import com.jing.easydb.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -11,6 +12,8 @@ public class PageImpl implements Page {
 
     private byte[] data;
 
+    private ByteBuffer buffer;
+
     private Lock lock;
 
     private boolean dirty;
@@ -20,6 +23,7 @@ public class PageImpl implements Page {
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.buffer = ByteBuffer.wrap(data);
         this.pc = pc;
         lock = new ReentrantLock();
     }
@@ -58,4 +62,9 @@ public class PageImpl implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
 }
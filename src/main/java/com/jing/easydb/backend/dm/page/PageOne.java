@@ -2,26 +2,67 @@ package com.jing.easydb.backend.dm.page;
 
 
 import com.jing.easydb.backend.dm.pageCache.PageCache;
+import com.jing.easydb.backend.dm.pageCache.PageCacheImpl;
+import com.jing.easydb.backend.utils.Panic;
 import com.jing.easydb.backend.utils.RandomUtil;
+import com.jing.easydb.common.Error;
+import com.jing.easydb.common.Parser;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 
 /**
  * 特殊管理第一页
+ * PageSize
+ * 0~3字节存放页大小，创建数据库时写入，第一页从文件开头开始，打开时不知道页大小也能读到
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
  */
 public class PageOne {
+    private static final int OF_PAGE_SIZE = 0;
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        Parser.putInt(raw, OF_PAGE_SIZE, pageSize);
         setVcOpen(raw);
         return raw;
     }
 
+    public static int getPageSize(Page pg) {
+        return pg.buffer().getInt(OF_PAGE_SIZE);
+    }
+
+    /**
+     * 打开数据库前从 .db 文件头读出页大小
+     */
+    public static int readPageSize(String path) {
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        if (!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        int pageSize = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if (raf.length() < PageCache.MIN_PAGE_SIZE) {
+                Panic.panic(Error.BadDbFileException);
+            }
+            raf.seek(OF_PAGE_SIZE);
+            byte[] buf = new byte[4];
+            raf.readFully(buf);
+            pageSize = Parser.parseInt(buf);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (pageSize < PageCache.MIN_PAGE_SIZE || pageSize > PageCache.MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.BadDbFileException);
+        }
+        return pageSize;
+    }
+
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
         setVcOpen(pg.getData());
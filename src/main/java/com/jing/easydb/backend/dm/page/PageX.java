@@ -1,76 +1,103 @@
 package com.jing.easydb.backend.dm.page;
 
 
-import com.jing.easydb.backend.dm.pageCache.PageCache;
 import com.jing.easydb.common.Parser;
 
-import java.util.Arrays;
-
 /**
  * PageX管理普通页
  * 普通页结构
  * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * FreeSpaceOffset: 4字节 空闲位置开始偏移，页大小可达64k，2字节放不下
+ * 页大小即页数据的长度，由创建数据库时决定
  */
 public class PageX {
 
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final int OF_FREE = 0;
+    private static final int OF_DATA = 4;
+
+    // 页头 FSO 的位置和长度，清空页面的日志记录的就是这几个字节
+    public static final int FSO_OFFSET = OF_FREE;
+    public static final int FSO_LENGTH = OF_DATA - OF_FREE;
+
+    // 页上最多能放的数据大小
+    public static int maxFreeSpace(int pageSize) {
+        return pageSize - OF_DATA;
+    }
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setFSO(raw, OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(byte[] raw, int ofData) {
+        Parser.putInt(raw, OF_FREE, ofData);
     }
 
-    // 获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    private static void setFSO(Page pg, int ofData) {
+        pg.buffer().putInt(OF_FREE, ofData);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    // 获取pg的FSO，直接在页上读取，不拷贝
+    // 预分配后从未写过的页全为0，当作空页
+    public static int getFSO(Page pg) {
+        int fso = pg.buffer().getInt(OF_FREE);
+        return fso == 0 ? OF_DATA : fso;
     }
 
     // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
+    public static int insert(Page pg, byte[] raw) {
         pg.setDirty(true); // 将pg的dirty标志设置为true，表示pg的数据已经被修改
-        short offset = getFSO(pg.getData()); // 获取pg的空闲空间偏移量
+        int offset = getFSO(pg); // 获取pg的空闲空间偏移量
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);// 将raw的数据复制到pg的数据中的offset位置
-        setFSO(pg.getData(), (short) (offset + raw.length)); // 更新pg的空闲空间偏移量
+        setFSO(pg, offset + raw.length); // 更新pg的空闲空间偏移量
         return offset; // 返回插入位置
     }
 
+    // [offset, offset + length) 处的数据项是否独占整页
+    public static boolean ownsPage(Page pg, int offset, int length) {
+        return offset == OF_DATA && offset + length == pg.getData().length;
+    }
+
+    // 清空后的 FSO
+    public static int emptyFSO() {
+        return OF_DATA;
+    }
+
+    /**
+     * 清空页面，之后的插入从数据区开头开始
+     * 调用前要先写入 Recover.freePageLog，崩溃后按日志重做，页面仍然可以复用
+     */
+    public static void free(Page pg) {
+        pg.setDirty(true);
+        setFSO(pg, OF_DATA);
+    }
+
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+        return pg.getData().length - getFSO(pg);
     }
 
     /**
      * 将 raw 数据插入到 页面 pg 的 指定位置 offset
-     * 如果在插入过程中，空闲区域也被涉及，则更新页的大小信息（页数据的前两个字节）
+     * 如果在插入过程中，空闲区域也被涉及，则更新页的大小信息（页数据的前四个字节）
      *
      * @param pg     具体要插入数据的页
      * @param raw    具体需要插入的数据
      * @param offset 数据需要插入的位置
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static void recoverInsert(Page pg, byte[] raw, int offset) {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
 
-        short rawFSO = getFSO(pg.getData());
+        int rawFSO = getFSO(pg);
         if (rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short) (offset + raw.length));
+            setFSO(pg, offset + raw.length);
         }
     }
 
-    // 确定是更新操作，所以不必更新Page头（两个字节表示FSO）
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    // 确定是更新操作，所以不必更新Page头（四个字节表示FSO）
+    public static void recoverUpdate(Page pg, byte[] raw, int offset) {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
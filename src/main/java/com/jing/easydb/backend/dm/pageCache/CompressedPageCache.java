@@ -0,0 +1,499 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+import com.jing.easydb.backend.common.AbstractCache;
+import com.jing.easydb.backend.dm.page.Page;
+import com.jing.easydb.backend.dm.page.PageImpl;
+import com.jing.easydb.backend.utils.Panic;
+import com.jing.easydb.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩存储的 PageCache
+ * <p>
+ * 页在写盘时用 Deflater 压缩，按 SECTOR 向上取整后放进 .db 文件中的一个变长槽位，
+ * 页号到槽位的映射记录在 .pmap 文件里，未命中时按映射读出压缩数据再用 Inflater 解压。
+ * 压缩后不比原页小的页原样存放。Deflater/Inflater 按线程复用，不在每次读写时新建。
+ * <p>
+ * 写回时总是写到一个新槽位，映射先只在内存中更新。同步时先 fsync 数据，再把积累的映射项一起写入并 fsync，
+ * 最后才释放旧槽位：落盘的映射要么指向旧的完整数据，要么指向新的完整数据，不会出现半页的压缩数据。
+ * 驱逐写回不单独同步，flushPage、newPage、截断、关闭以及积累了 SYNC_BATCH 页时各同步一次，
+ * 每页的两次 fsync 被分摊到一批页上。
+ * <p>
+ * .pmap 文件格式：
+ * [PageSize] 4字节
+ * 之后每页一项：[Offset] 8字节 [Length] 4字节，Length 等于页大小表示未压缩
+ * <p>
+ * .db 文件不再是按页号排列的原始页，所以预读、批量写回和区段预分配都不适用于这种格式。
+ */
+public class CompressedPageCache extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEM_MIN_LIM = 10;
+    public static final String MAP_SUFFIX = ".pmap";
+
+    static final int SECTOR = 512;                      // 槽位的分配粒度
+    private static final int LEN_HEADER = 4;
+    private static final int LEN_ENTRY = 12;
+    static final int SYNC_BATCH = 64;                  // 积累这么多页未同步的映射项时同步一次
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private RandomAccessFile mapFile;
+    private FileChannel mapFc;
+    private int pageSize;
+
+    // 以下受ioLock保护：读页持读锁，写页、新建页、截断持写锁
+    private ReadWriteLock ioLock;
+    private long[] offsets;                             // 下标为 pgno-1
+    private int[] lengths;
+    private int pageNumbers;
+    private TreeMap<Integer, ArrayDeque<Long>> free;    // 空闲槽位，按扇区数归类
+    private long fileEnd;                               // 已使用区域的末尾
+    private BitSet unsyncedEntries;                     // 映射项已在内存中更新、尚未写入 .pmap 的页，下标为 pgno-1
+    private List<long[]> pendingFree;                   // 落盘的映射可能仍指向的旧槽位 [offset, 扇区数]，同步后才能复用
+
+    // 压缩/解压器及缓冲按线程复用
+    private ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+    private ThreadLocal<byte[]> compressBuf;
+
+    CompressedPageCache(RandomAccessFile file, FileChannel fileChannel,
+                        RandomAccessFile mapFile, FileChannel mapChannel, int maxResource, int pageSize) {
+        super(maxResource);
+        if (maxResource < MEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        PageCacheImpl.checkPageSize(pageSize);
+        this.file = file;
+        this.fc = fileChannel;
+        this.mapFile = mapFile;
+        this.mapFc = mapChannel;
+        this.pageSize = pageSize;
+        this.ioLock = new ReentrantReadWriteLock();
+        this.compressBuf = ThreadLocal.withInitial(() -> new byte[pageSize]);
+        this.unsyncedEntries = new BitSet();
+        this.pendingFree = new ArrayList<>();
+        try {
+            loadMap();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        rebuildFreeList();
+    }
+
+    /**
+     * 读入 .pmap，新建的文件先写入页大小
+     */
+    private void loadMap() throws IOException {
+        long length = mapFc.size();
+        if (length < LEN_HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(LEN_HEADER);
+            header.putInt(0, pageSize);
+            writeFully(mapFc, header, 0);
+            mapFc.force(false);
+            length = LEN_HEADER;
+        }
+        int n = (int) ((length - LEN_HEADER) / LEN_ENTRY);
+        ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER + n * LEN_ENTRY);
+        readFully(mapFc, buf, 0);
+        if (buf.getInt(0) != pageSize) {
+            Panic.panic(Error.BadDbFileException);
+        }
+        offsets = new long[Math.max(n, 16)];
+        lengths = new int[offsets.length];
+        for (int i = 0; i < n; i++) {
+            int pos = LEN_HEADER + i * LEN_ENTRY;
+            offsets[i] = buf.getLong(pos);
+            lengths[i] = buf.getInt(pos + 8);
+        }
+        pageNumbers = n;
+    }
+
+    /**
+     * 根据映射找出 .db 中没有被任何页使用的区域，放进空闲表
+     */
+    private void rebuildFreeList() {
+        free = new TreeMap<>();
+        long[][] used = new long[pageNumbers][];
+        for (int i = 0; i < pageNumbers; i++) {
+            used[i] = new long[]{offsets[i], sectors(lengths[i])};
+        }
+        Arrays.sort(used, (a, b) -> Long.compare(a[0], b[0]));
+        long pos = 0;
+        for (long[] slot : used) {
+            if (slot[0] > pos) {
+                addFree(pos, (int) ((slot[0] - pos) / SECTOR));
+            }
+            pos = Math.max(pos, slot[0] + slot[1] * SECTOR);
+        }
+        fileEnd = pos;
+    }
+
+    public int newPage(byte[] initData) {
+        int len = compress(initData);
+        byte[] src = len == pageSize ? initData : compressBuf.get();
+        ioLock.writeLock().lock();
+        try {
+            int pgno = pageNumbers + 1;
+            store(pgno, src, len);
+            pageNumbers = pgno;
+            // 新页要立即落盘，否则崩溃后页数会倒退
+            sync();
+            return pgno;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        } finally {
+            ioLock.writeLock().unlock();
+        }
+    }
+
+    public Page getPage(int pgno) throws Exception {
+        return get((long) pgno);
+    }
+
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int) key;
+        byte[] data = new byte[pageSize];
+        byte[] raw;
+        int len;
+        ioLock.readLock().lock();
+        try {
+            if (pgno > pageNumbers) {
+                // 与 PageCacheImpl 一致，文件之外的页读出来是全零
+                return new PageImpl(pgno, data, this);
+            }
+            len = lengths[pgno - 1];
+            raw = len == pageSize ? data : new byte[len];
+            readFully(fc, ByteBuffer.wrap(raw, 0, len), offsets[pgno - 1]);
+        } finally {
+            ioLock.readLock().unlock();
+        }
+        if (raw != data) {
+            decompress(raw, len, data);
+        }
+        return new PageImpl(pgno, data, this);
+    }
+
+    @Override
+    protected void releaseForCache(Page pg) {
+        if (pg.isDirty()) {
+            write(pg, false);
+            pg.setDirty(false);
+            getStats().recordDirtyWriteBack();
+        }
+    }
+
+    public void release(Page page) {
+        release((long) page.getPageNumber());
+    }
+
+    public void flushPage(Page pg) {
+        write(pg, true);
+    }
+
+    /**
+     * 写回一页，force 为 true 时连同之前积累的映射项一起同步
+     */
+    private void write(Page pg, boolean force) {
+        int pgno = pg.getPageNumber();
+        byte[] data = pg.getData();
+        // 压缩不需要持锁
+        int len = compress(data);
+        byte[] src = len == pageSize ? data : compressBuf.get();
+        ioLock.writeLock().lock();
+        try {
+            if (pgno > pageNumbers) {
+                // 已被截断的页，不应该再写回
+                return;
+            }
+            store(pgno, src, len);
+            if (force || pendingFree.size() >= SYNC_BATCH) {
+                sync();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            ioLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把一页写进新的槽位，只更新内存中的映射，调用时持有写锁
+     * 旧槽位在下一次 sync 之前仍可能被落盘的映射引用，暂不复用
+     */
+    private void store(int pgno, byte[] src, int len) throws IOException {
+        int n = sectors(len);
+        long offset = allocate(n);
+        writeFully(fc, ByteBuffer.wrap(src, 0, len), offset);
+
+        int idx = pgno - 1;
+        if (idx >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            lengths = Arrays.copyOf(lengths, offsets.length);
+        }
+        if (idx < pageNumbers) {
+            pendingFree.add(new long[]{offsets[idx], sectors(lengths[idx])});
+        }
+        offsets[idx] = offset;
+        lengths[idx] = len;
+        unsyncedEntries.set(idx);
+    }
+
+    /**
+     * 先 fsync 数据，再写入积累的映射项并 fsync，之后旧槽位不再被引用，放回空闲表
+     * 调用时持有写锁
+     */
+    private void sync() throws IOException {
+        if (unsyncedEntries.isEmpty()) {
+            return;
+        }
+        fc.force(false);
+        ByteBuffer entry = ByteBuffer.allocate(LEN_ENTRY);
+        for (int idx = unsyncedEntries.nextSetBit(0); idx >= 0; idx = unsyncedEntries.nextSetBit(idx + 1)) {
+            if (idx >= pageNumbers) {
+                // 已被截断
+                break;
+            }
+            entry.clear();
+            entry.putLong(0, offsets[idx]);
+            entry.putInt(8, lengths[idx]);
+            writeFully(mapFc, entry, entryOffset(idx + 1));
+        }
+        mapFc.force(false);
+        unsyncedEntries.clear();
+        for (long[] slot : pendingFree) {
+            addFree(slot[0], (int) slot[1]);
+        }
+        pendingFree.clear();
+    }
+
+    /**
+     * 压缩一页到当前线程的 compressBuf，返回压缩后的长度
+     * 压缩后不比原页小时返回页大小，表示按原样存放
+     */
+    private int compress(byte[] data) {
+        Deflater d = deflater.get();
+        byte[] out = compressBuf.get();
+        d.reset();
+        d.setInput(data, 0, pageSize);
+        d.finish();
+        int len = d.deflate(out, 0, out.length);
+        if (!d.finished() || len >= pageSize) {
+            return pageSize;
+        }
+        return len;
+    }
+
+    /**
+     * 解压一页，数据损坏时抛出 BadDbFileException
+     */
+    private void decompress(byte[] raw, int len, byte[] data) throws Exception {
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(raw, 0, len);
+        try {
+            int n = 0;
+            while (n < pageSize && !inf.finished()) {
+                long read = inf.getBytesRead();
+                int r = inf.inflate(data, n, pageSize - n);
+                if (r == 0 && inf.getBytesRead() == read) {
+                    // 既没有输出也没有消耗输入：输入耗尽、需要字典或者数据损坏，再调用也不会有进展
+                    throw Error.BadDbFileException;
+                }
+                n += r;
+            }
+            if (n != pageSize) {
+                throw Error.BadDbFileException;
+            }
+        } catch (DataFormatException e) {
+            throw Error.BadDbFileException;
+        }
+    }
+
+    /**
+     * 分配 n 个扇区：优先取最小的能放下的空闲槽位，多余部分放回空闲表；没有时追加到末尾
+     */
+    private long allocate(int n) {
+        Map.Entry<Integer, ArrayDeque<Long>> e = free.ceilingEntry(n);
+        if (e == null) {
+            long offset = fileEnd;
+            fileEnd += (long) n * SECTOR;
+            return offset;
+        }
+        long offset = e.getValue().pop();
+        if (e.getValue().isEmpty()) {
+            free.remove(e.getKey());
+        }
+        if (e.getKey() > n) {
+            addFree(offset + (long) n * SECTOR, e.getKey() - n);
+        }
+        return offset;
+    }
+
+    private void addFree(long offset, int n) {
+        free.computeIfAbsent(n, k -> new ArrayDeque<>()).push(offset);
+    }
+
+    private static int sectors(int len) {
+        return (len + SECTOR - 1) / SECTOR;
+    }
+
+    private static long entryOffset(int pgno) {
+        return LEN_HEADER + (long) (pgno - 1) * LEN_ENTRY;
+    }
+
+    /**
+     * 截掉 maxPgno 之后的映射，它们占用的槽位重新计算为空闲
+     * 先同步积累的映射项，空闲表按落盘的映射重建
+     */
+    public void truncateByBgno(int maxPgno) {
+        ioLock.writeLock().lock();
+        try {
+            sync();
+            mapFile.setLength(entryOffset(maxPgno + 1));
+            mapFc.force(false);
+            pageNumbers = maxPgno;
+            rebuildFreeList();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            ioLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        ioLock.writeLock().lock();
+        try {
+            sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            ioLock.writeLock().unlock();
+        }
+        try {
+            // 末尾的空闲槽位不再需要
+            if (file.length() > fileEnd) {
+                file.setLength(fileEnd);
+            }
+            fc.force(false);
+            fc.close();
+            file.close();
+            mapFc.close();
+            mapFile.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public int getPageNumber() {
+        ioLock.readLock().lock();
+        try {
+            return pageNumbers;
+        } finally {
+            ioLock.readLock().unlock();
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * .db 实际占用的字节数
+     */
+    public long getStoredBytes() {
+        ioLock.readLock().lock();
+        try {
+            return fileEnd;
+        } finally {
+            ioLock.readLock().unlock();
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+    }
+
+    // 路径下存在 .pmap 文件即为压缩存储的数据库
+    static boolean exists(String path) {
+        return new File(path + MAP_SUFFIX).exists();
+    }
+
+    // 创建 .pmap 文件
+    static RandomAccessFile createMapFile(String path) {
+        File f = new File(path + MAP_SUFFIX);
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return openMapFile(path);
+    }
+
+    // 打开已有的 .pmap 文件
+    static RandomAccessFile openMapFile(String path) {
+        File f = new File(path + MAP_SUFFIX);
+        if (!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
+
+    // 从 .pmap 文件头读出页大小
+    static int readPageSize(String path) {
+        try (RandomAccessFile raf = openMapFile(path)) {
+            if (raf.length() < LEN_HEADER) {
+                Panic.panic(Error.BadDbFileException);
+            }
+            int pageSize = raf.readInt();
+            PageCacheImpl.checkPageSize(pageSize);
+            return pageSize;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        }
+    }
+}
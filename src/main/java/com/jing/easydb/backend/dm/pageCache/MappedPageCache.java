@@ -0,0 +1,270 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+import com.jing.easydb.backend.common.AbstractCache;
+import com.jing.easydb.backend.dm.page.Page;
+import com.jing.easydb.backend.dm.page.PageImpl;
+import com.jing.easydb.backend.utils.Panic;
+import com.jing.easydb.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于内存映射的 PageCache
+ * <p>
+ * 把 .db 文件按 CHUNK_SIZE 分段用 FileChannel.map 映射进来，未命中时从映射中拷贝页数据，
+ * 写回时拷贝回映射再对这一页所在区域调用 force，读盘和预读都交给操作系统的页缓存。
+ * 适合读多写少、希望依赖操作系统页缓存的部署。
+ * <p>
+ * 文件按整个分段扩展，每个分段只映射一次，newPage 直接写进已有的映射，不需要重新映射。
+ * 关闭时把文件截回页数 * 页大小，与 PageCacheImpl 的文件格式完全相同，两者可以互换打开同一个数据库；
+ * 异常退出后文件停在分段边界，打开时和预分配区段一样跳过末尾从未写过的全零页。
+ */
+public class MappedPageCache extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEM_MIN_LIM = 10;
+    static final int CHUNK_SIZE = 1 << 26; // 64M
+
+    // sun.misc.Unsafe.invokeCleaner，立即解除映射；取不到时为null，只能等映射被 GC 回收
+    private static final MethodHandle UNMAP = unmapHandle();
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private int pageSize;
+    private int pagesPerChunk;
+
+    private volatile MappedByteBuffer[] chunks;         // 各分段的映射，总是映射整个分段，null表示尚未映射
+    private Lock mapLock;                               // 保护文件扩展、截断以及重新映射
+
+    // 数据库文件的页数
+    private AtomicInteger pageNumbers;
+
+    MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource, int pageSize) {
+        super(maxResource);
+        if (maxResource < MEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        PageCacheImpl.checkPageSize(pageSize);
+        long length = 0;
+        try {
+            length = file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.file = file;
+        this.fc = fileChannel;
+        this.pageSize = pageSize;
+        this.pagesPerChunk = CHUNK_SIZE / pageSize;
+        this.mapLock = new ReentrantLock();
+        int pages = (int) (length / pageSize);
+        if (length > 0 && length % CHUNK_SIZE == 0) {
+            // 没有正常关闭，文件还停在分段边界
+            try {
+                pages = PageCacheImpl.countWrittenPages(fileChannel, pageSize, pages);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        this.pageNumbers = new AtomicInteger(pages);
+        this.chunks = new MappedByteBuffer[0];
+    }
+
+    public int newPage(byte[] initData) {
+        mapLock.lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            // 进入新的分段时才扩展文件并映射，其余的新页直接写进映射
+            MappedByteBuffer chunk = chunkFor(pgno);
+            int index = offsetInChunk(pgno);
+            ByteBuffer buf = chunk.duplicate();
+            buf.position(index);
+            buf.put(initData, 0, pageSize);
+            chunk.force(index, pageSize);
+            return pgno;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    public Page getPage(int pgno) throws Exception {
+        return get((long) pgno);
+    }
+
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int) key;
+        byte[] data = new byte[pageSize];
+        // 通过副本定位，不改动共享映射的 position
+        ByteBuffer buf = chunkFor(pgno).duplicate();
+        buf.position(offsetInChunk(pgno));
+        buf.get(data);
+        return new PageImpl(pgno, data, this);
+    }
+
+    @Override
+    protected void releaseForCache(Page pg) {
+        if (pg.isDirty()) {
+            flush(pg);
+            pg.setDirty(false);
+            getStats().recordDirtyWriteBack();
+        }
+    }
+
+    public void release(Page page) {
+        release((long) page.getPageNumber());
+    }
+
+    public void flushPage(Page pg) {
+        flush(pg);
+    }
+
+    private void flush(Page pg) {
+        int pgno = pg.getPageNumber();
+        if (pgno > pageNumbers.get()) {
+            // 已被截断的页，映射不会覆盖它，也不应该再写回
+            return;
+        }
+        MappedByteBuffer chunk = chunkFor(pgno);
+        int index = offsetInChunk(pgno);
+        ByteBuffer buf = chunk.duplicate();
+        buf.position(index);
+        buf.put(pg.getData());
+        chunk.force(index, pageSize);
+    }
+
+    /**
+     * 取得页所在分段的映射，还没有映射时先把文件扩展到分段末尾再映射整个分段
+     */
+    private MappedByteBuffer chunkFor(int pgno) {
+        int idx = chunkIndex(pgno);
+        MappedByteBuffer[] cs = chunks;
+        if (idx < cs.length && cs[idx] != null) {
+            return cs[idx];
+        }
+        mapLock.lock();
+        try {
+            if (idx >= chunks.length) {
+                MappedByteBuffer[] grown = new MappedByteBuffer[idx + 1];
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                chunks = grown;
+            }
+            MappedByteBuffer chunk = chunks[idx];
+            if (chunk == null) {
+                long end = (long) (idx + 1) * CHUNK_SIZE;
+                if (file.length() < end) {
+                    // 分段中还没用到的部分是稀疏的，不占磁盘空间；映射之外的区域被访问会收到 SIGBUS
+                    file.setLength(end);
+                }
+                chunk = fc.map(FileChannel.MapMode.READ_WRITE, (long) idx * CHUNK_SIZE, CHUNK_SIZE);
+                chunks[idx] = chunk;
+            }
+            return chunk;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private int chunkIndex(int pgno) {
+        return (pgno - 1) / pagesPerChunk;
+    }
+
+    private int offsetInChunk(int pgno) {
+        return ((pgno - 1) % pagesPerChunk) * pageSize;
+    }
+
+    /**
+     * 截断前先解除覆盖到新长度之后的映射：还映射着的区域被截掉后再访问会收到 SIGBUS，
+     * Windows 上也不允许截断仍被映射的文件。之后访问这个分段时会重新扩展并映射。
+     * 只在恢复时调用，此时没有其他线程访问映射
+     */
+    public void truncateByBgno(int maxPgno) {
+        mapLock.lock();
+        try {
+            long length = PageCacheImpl.pageOffset(maxPgno + 1, pageSize);
+            MappedByteBuffer[] cs = chunks.clone();
+            for (int i = 0; i < cs.length; i++) {
+                if (cs[i] != null && (long) i * CHUNK_SIZE + cs[i].capacity() > length) {
+                    unmap(cs[i]);
+                    cs[i] = null;
+                }
+            }
+            chunks = cs;
+            file.setLength(length);
+            pageNumbers.set(maxPgno);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mapLock.lock();
+        try {
+            for (MappedByteBuffer chunk : chunks) {
+                if (chunk != null) {
+                    unmap(chunk);
+                }
+            }
+            chunks = new MappedByteBuffer[0];
+        } finally {
+            mapLock.unlock();
+        }
+        try {
+            // 截掉分段末尾没有用到的部分，下次打开时文件长度就是页数
+            file.setLength(PageCacheImpl.pageOffset(pageNumbers.get() + 1, pageSize));
+            fc.force(false);
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static MethodHandle unmapHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(f.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // 调用方保证之后不会再有线程访问 chunk
+    private static void unmap(MappedByteBuffer chunk) {
+        if (UNMAP == null) {
+            return;
+        }
+        try {
+            UNMAP.invokeExact((ByteBuffer) chunk);
+        } catch (Throwable e) {
+            Panic.panic(new RuntimeException(e));
+        }
+    }
+
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
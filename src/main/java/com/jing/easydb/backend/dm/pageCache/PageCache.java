@@ -2,17 +2,14 @@ package com.jing.easydb.backend.dm.pageCache;
 
 
 import com.jing.easydb.backend.dm.page.Page;
-import com.jing.easydb.backend.utils.Panic;
-import com.jing.easydb.common.Error;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
 
 public interface PageCache {
 
-    public static final int PAGE_SIZE = 1 << 13; // 8k
+    public static final int PAGE_SIZE = 1 << 13; // 8k，默认的页大小
+    public static final int MIN_PAGE_SIZE = 1 << 12; // 4k
+    public static final int MAX_PAGE_SIZE = 1 << 16; // 64k
 
     int newPage(byte[] initData);
 
@@ -28,52 +25,72 @@ public interface PageCache {
 
     void flushPage(Page pg);
 
+    // 页大小，由创建数据库时决定
+    int getPageSize();
+
     /**
      * @param path   .db后缀的文件路径
      * @param memory 内存空间
      * @return PageCacheImpl
      */
     public static PageCacheImpl create(String path, long memory) {
-        File f = new File(path + PageCacheImpl.DB_SUFFIX);
-        try {
-            if (!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return create(path, memory, PageCacheOptions.defaults());
+    }
+
+    public static PageCacheImpl create(String path, long memory, PageCacheOptions options) {
+        RandomAccessFile raf = PageCacheImpl.createFile(path);
+        return new PageCacheImpl(raf, raf.getChannel(), (int) (memory / options.pageSize), options);
     }
 
     public static PageCacheImpl open(String path, long memory) {
-        File f = new File(path + PageCacheImpl.DB_SUFFIX);
-        if (!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return open(path, memory, PageCacheOptions.defaults());
+    }
+
+    public static PageCacheImpl open(String path, long memory, PageCacheOptions options) {
+        RandomAccessFile raf = PageCacheImpl.openFile(path);
+        return new PageCacheImpl(raf, raf.getChannel(), (int) (memory / options.pageSize), options);
+    }
+
+    /**
+     * 创建基于内存映射的 PageCache，文件格式与 PageCacheImpl 相同
+     */
+    public static MappedPageCache createMapped(String path, long memory) {
+        return createMapped(path, memory, PAGE_SIZE);
+    }
+
+    public static MappedPageCache createMapped(String path, long memory, int pageSize) {
+        RandomAccessFile raf = PageCacheImpl.createFile(path);
+        return new MappedPageCache(raf, raf.getChannel(), (int) (memory / pageSize), pageSize);
+    }
+
+    public static MappedPageCache openMapped(String path, long memory) {
+        return openMapped(path, memory, PAGE_SIZE);
+    }
+
+    public static MappedPageCache openMapped(String path, long memory, int pageSize) {
+        RandomAccessFile raf = PageCacheImpl.openFile(path);
+        return new MappedPageCache(raf, raf.getChannel(), (int) (memory / pageSize), pageSize);
+    }
+
+    /**
+     * 创建压缩存储的 PageCache，.db 中存放压缩后的页，页号到位置的映射存放在 .pmap 中
+     */
+    public static CompressedPageCache createCompressed(String path, long memory, int pageSize) {
+        RandomAccessFile map = CompressedPageCache.createMapFile(path);
+        RandomAccessFile raf = PageCacheImpl.createFile(path);
+        return new CompressedPageCache(raf, raf.getChannel(), map, map.getChannel(), (int) (memory / pageSize), pageSize);
+    }
+
+    // 页大小以 .pmap 文件头中记录的为准
+    public static CompressedPageCache openCompressed(String path, long memory) {
+        int pageSize = CompressedPageCache.readPageSize(path);
+        RandomAccessFile map = CompressedPageCache.openMapFile(path);
+        RandomAccessFile raf = PageCacheImpl.openFile(path);
+        return new CompressedPageCache(raf, raf.getChannel(), map, map.getChannel(), (int) (memory / pageSize), pageSize);
+    }
+
+    // 数据库是否以压缩格式存储
+    public static boolean isCompressed(String path) {
+        return CompressedPageCache.exists(path);
     }
 }
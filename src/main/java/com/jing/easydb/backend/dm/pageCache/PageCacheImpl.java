@@ -4,13 +4,18 @@ package com.jing.easydb.backend.dm.pageCache;
 import com.jing.easydb.backend.common.AbstractCache;
 import com.jing.easydb.backend.dm.page.Page;
 import com.jing.easydb.backend.dm.page.PageImpl;
+import com.jing.easydb.backend.utils.MBeans;
 import com.jing.easydb.backend.utils.Panic;
 import com.jing.easydb.common.Error;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,16 +28,37 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
+    private int pageSize;
+    private Lock fileLock;          // 只用于串行化文件的扩展和截断，页的读写都是定位读写，互不阻塞
 
     // 用于存储缓存中已经存放的页数
     private AtomicInteger pageNumbers;
 
+    // 按区段预分配文件，extentPages 为0时不预分配
+    private int extentPages;
+    private int allocatedPages;     // 文件实际长度对应的页数，预分配时会大于 pageNumbers，受fileLock保护
+
+    // 顺序预读
+    private ReadAhead readAhead;
+    private Cleaner.Cleanable readAheadMBean;          // 关闭或被回收时注销 MBean 并停掉预读线程
+
+    // 页帧池，未启用时为null
+    private PageFrameArena arena;
+
+    // 后台脏页写回，未启用时为null
+    private PageWriter pageWriter;
+    private Cleaner.Cleanable pageWriterMBean;         // 关闭或被回收时注销 MBean 并停掉写回线程
+
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        this(file, fileChannel, maxResource, PageCacheOptions.defaults());
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, PageCacheOptions options) {
         super(maxResource);
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
+        checkPageSize(options.pageSize);
         long length = 0;
         try {
             length = file.length();
@@ -41,17 +67,103 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
+        this.pageSize = options.pageSize;
         this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.allocatedPages = (int) (length / pageSize);
+        this.extentPages = (int) (options.extentSize / pageSize);
+        int pages = allocatedPages;
+        if (extentPages > 0) {
+            try {
+                pages = countWrittenPages(fileChannel, pageSize, allocatedPages);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        this.pageNumbers = new AtomicInteger(pages);
+        this.readAhead = new ReadAhead(fileChannel, pageSize);
+        this.readAheadMBean = MBeans.register(this, readAhead, "ReadAhead", PageCacheImpl.class.getSimpleName(),
+                readAhead::shutdown);
+        if (options.frameArena) {
+            this.arena = new PageFrameArena(maxResource, pageSize);
+        }
+        if (options.pageWriterIntervalMs > 0) {
+            this.pageWriter = new PageWriter(this, fileChannel, options.pageWriterIntervalMs);
+            this.pageWriterMBean = MBeans.register(this, pageWriter, "PageWriter", PageCacheImpl.class.getSimpleName(),
+                    pageWriter::shutdown);
+        }
     }
 
     //PageCache 还使用了一个 AtomicInteger，来记录了当前打开的数据库文件有多少页。
     //这个数字在数据库文件被打开时就会被计算，并在新建页面时自增。
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg); // 新建的页面需要立刻写回
-        return pgno;
+        if (extentPages > 0) {
+            return newPageInExtent(initData);
+        }
+        // 分配页号和写入新页要一起完成，保证文件总是按页号顺序增长，不会出现空洞
+        fileLock.lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            Page pg = new PageImpl(pgno, initData, null);
+            flush(pg); // 新建的页面需要立刻写回
+            return pgno;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * 从预分配的区段中分配页号，区段用完时一次扩展 extentPages 页
+     * 新页作为脏页放进缓存，第一次写盘交给驱逐或后台写回；缓存已满且全部被引用时直接写入，不单独 fsync
+     */
+    private int newPageInExtent(byte[] initData) {
+        fileLock.lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            if (pgno > allocatedPages) {
+                // RandomAccessFile 没有 fallocate，setLength 只在扩展区段时改一次文件长度
+                file.setLength(pageOffset(allocatedPages + extentPages + 1));
+                allocatedPages += extentPages;
+            }
+            byte[] data = arena != null ? arena.allocate() : new byte[pageSize];
+            System.arraycopy(initData, 0, data, 0, pageSize);
+            Page pg = new PageImpl(pgno, data, this);
+            pg.setDirty(true);
+            readAhead.invalidate(pgno);
+            if (!install(pgno, pg)) {
+                write(pg, false);
+                // 没有进入缓存，不会再被驱逐，帧要在这里归还
+                if (arena != null) {
+                    arena.recycle(data);
+                }
+            }
+            return pgno;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * 预分配后异常退出时，文件末尾会留下从未写过的全零页，它们不计入页数。MappedPageCache 也用它
+     */
+    static int countWrittenPages(FileChannel fc, int pageSize, int pages) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        while (pages > 0) {
+            buf.clear();
+            readFully(fc, buf, pageOffset(pages, pageSize));
+            byte[] raw = buf.array();
+            int i = 0;
+            while (i < raw.length && raw[i] == 0) {
+                i++;
+            }
+            if (i < raw.length) {
+                break;
+            }
+            pages--;
+        }
+        return pages;
     }
 
     public Page getPage(int pgno) throws Exception {
@@ -60,29 +172,97 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
+     * 页正在被后台写回时以快照为准，其次从顺序预读的缓冲中取
      */
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+        byte[] frame = arena != null ? arena.allocate() : new byte[pageSize];
+        if (pageWriter != null && pageWriter.takeStaged(pgno, frame)) {
+            return new PageImpl(pgno, frame, this);
+        }
+        boolean prefetched = readAhead.take(pgno, frame);
+        readAhead.onMiss(pgno, pageNumbers.get());
+        if (prefetched) {
+            return new PageImpl(pgno, frame, this);
+        }
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            readFully(buf, pageOffset(pgno));
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        if (arena != null && buf.hasRemaining()) {
+            // 复用的帧里还有上一页的内容，文件末尾之外的部分清零
+            Arrays.fill(frame, buf.position(), pageSize, (byte) 0);
+        }
+        return new PageImpl(pgno, frame, this);
+    }
+
+    // 页帧池，未启用时为null
+    PageFrameArena getArena() {
+        return arena;
+    }
+
+    /**
+     * 顺序预读的统计
+     */
+    public ReadAheadStatsMXBean getReadAheadStats() {
+        return readAhead;
+    }
+
+    /**
+     * 后台写回的统计，未启用时返回null
+     */
+    public PageWriterStatsMXBean getPageWriterStats() {
+        return pageWriter;
+    }
+
+    /**
+     * 把未被引用的脏页拍快照登记到 writer 中并标记为干净，最多 max 页
+     * 先登记再清除脏标记，页随后被驱逐、重新加载时能从快照中取到最新内容
+     */
+    void collectDirtyPages(PageWriter writer, int max) {
+        int[] n = new int[1];
+        forEachIdle(pg -> {
+            if (pg.isDirty()) {
+                writer.stage(pg.getPageNumber(), pg.getData().clone());
+                pg.setDirty(false);
+                n[0]++;
+            }
+            return n[0] < max;
+        });
+    }
+
+    /**
+     * 后台写回完成一页
+     */
+    void pageWritten(int pgno) {
+        readAhead.invalidate(pgno);
+    }
+
+    /**
+     * 立即写回一批未被引用的脏页，返回写回的页数，未启用后台写回时返回0
+     */
+    int writeDirtyPages() {
+        return pageWriter == null ? 0 : pageWriter.writeBatch();
     }
 
+    /**
+     * 驱逐时写回脏页，不单独 fsync：
+     * 启用后台写回时由下一批的 fsync 一起落盘，关闭时统一 fsync；崩溃时由日志重做恢复
+     */
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
+            // 开启后台写回时由它批量 fsync，否则和原来一样驱逐时立即落盘
+            write(pg, pageWriter == null);
             pg.setDirty(false);
+            getStats().recordDirtyWriteBack();
+        }
+        if (arena != null) {
+            arena.recycle(pg.getData());
         }
     }
 
@@ -95,36 +275,84 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     private void flush(Page pg) {
+        write(pg, true);
+    }
+
+    private void write(Page pg, boolean force) {
         int pgno = pg.getPageNumber();
         long offset = pageOffset(pgno);
+        if (pageWriter != null) {
+            pageWriter.awaitWritten(pgno);
+        }
 
-        fileLock.lock();
         try {
             ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
+            writeFully(buf, offset);
+            if (force) {
+                fc.force(false);
+            }
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+        }
+        readAhead.invalidate(pgno);
+    }
+
+    /**
+     * 从offset处定位读，直到buf读满或者到达文件末尾
+     * 定位读不修改channel的position，多个线程可以同时读不同的页
+     */
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        readFully(fc, buf, offset);
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = fc.read(buf, offset + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 从offset处定位写，直到buf全部写出
+     */
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
         }
     }
 
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno + 1);
+        fileLock.lock();
         try {
             file.setLength(size);
+            allocatedPages = maxPgno;
+            pageNumbers.set(maxPgno);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
-        pageNumbers.set(maxPgno);
+        readAhead.clear();
     }
 
     @Override
     public void close() {
+        if (pageWriter != null) {
+            pageWriter.close();
+            pageWriterMBean.clean();
+        }
         super.close();
+        readAhead.close();
+        readAheadMBean.clean();
         try {
+            if (allocatedPages > pageNumbers.get()) {
+                // 截掉预分配而未使用的部分，下次打开时文件长度就是页数
+                file.setLength(pageOffset(pageNumbers.get() + 1));
+            }
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -136,8 +364,64 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    long pageOffset(int pgno) {
+        return pageOffset(pgno, pageSize);
+    }
+
+    static long pageOffset(int pgno, int pageSize) {
+        return (long) (pgno - 1) * pageSize;
     }
 
+    // 页大小必须是 MIN_PAGE_SIZE ~ MAX_PAGE_SIZE 之间的2的幂
+    static void checkPageSize(int pageSize) {
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+    }
+
+    // 创建 .db 文件，PageCache 各实现共用
+    static RandomAccessFile createFile(String path) {
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
+
+    // 打开已有的 .db 文件
+    static RandomAccessFile openFile(String path) {
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        if (!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
 }
@@ -0,0 +1,29 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+/**
+ * PageCacheImpl 的可选配置
+ */
+public class PageCacheOptions {
+
+    // 页大小，MIN_PAGE_SIZE ~ MAX_PAGE_SIZE 之间的2的幂，打开已有数据库时必须与创建时一致
+    public int pageSize = PageCache.PAGE_SIZE;
+
+    // 页帧池：预先按内存预算分配全部页帧并循环使用，未命中时不再分配新数组
+    public boolean frameArena = false;
+
+    // 后台脏页写回的周期（毫秒），0 表示不启用，脏页只在驱逐和关闭时写回
+    // 启用后 PageCacheImpl 会在自己的线程里写文件，直到 close 为止
+    public long pageWriterIntervalMs = 0;
+
+    // 文件按多大的区段预分配（字节，按页向下取整），0 表示每次新建页时扩展一页并立即 fsync
+    // 启用后新页先放在缓存里作为脏页，随正常的脏页写回落盘；close 时把文件截回实际的页数
+    public long extentSize = 0;
+
+    // 压缩存储：页压缩后放进变长槽位，由 DataManager 改用 CompressedPageCache，上面的写回和预分配选项不再生效
+    // 只在创建数据库时指定，打开时根据是否存在 .pmap 文件自动识别
+    public boolean compression = false;
+
+    public static PageCacheOptions defaults() {
+        return new PageCacheOptions();
+    }
+}
@@ -0,0 +1,71 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页帧池
+ * 按内存预算一次性分配 maxResource 个页帧，页被驱逐后帧回到空闲栈，给下一次未命中复用，
+ * 稳定运行时未命中不再分配新的 byte[]，也就不会在老年代堆积待回收的页
+ */
+class PageFrameArena {
+
+    private final int frameSize;
+    private final byte[][] freeFrames;                  // 空闲栈
+    private int free;
+    private final Lock lock;
+
+    PageFrameArena(int frames, int frameSize) {
+        this.frameSize = frameSize;
+        this.freeFrames = new byte[frames][];
+        for (int i = 0; i < frames; i++) {
+            freeFrames[i] = new byte[frameSize];
+        }
+        this.free = frames;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 取一个空闲帧，内容是上一个使用者留下的，调用方需要整页覆盖
+     * 缓存保证常驻页不超过帧数，空闲栈为空时只可能是帧还没归还，临时新分配一个
+     */
+    byte[] allocate() {
+        lock.lock();
+        try {
+            if (free > 0) {
+                byte[] frame = freeFrames[--free];
+                freeFrames[free] = null;
+                return frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new byte[frameSize];
+    }
+
+    /**
+     * 页被驱逐后归还它的帧，调用方不能再访问该帧
+     */
+    void recycle(byte[] frame) {
+        if (frame.length != frameSize) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (free < freeFrames.length) {
+                freeFrames[free++] = frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int freeFrames() {
+        lock.lock();
+        try {
+            return free;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+import com.jing.easydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageCacheImpl 的后台脏页写回
+ * <p>
+ * 每隔 interval 毫秒把缓存中未被引用的脏页各拷贝一份快照，按 pgno 顺序写回，pgno 连续的页合并成一次聚集写，
+ * 整批只 fsync 一次。这样前台驱逐时遇到的大多是干净页，不必在调用者线程上写盘。
+ * <p>
+ * 预写日志：只取未被引用的页。DataManager 修改页面期间一直持有页的引用，并且在释放引用之前，
+ * 修改对应的日志已经由 Logger.log 强制落盘，所以被取到的页上所有修改的日志都已持久化。
+ * <p>
+ * 一批快照从登记到写完之前留在 writing 中：这期间页已被标记为干净，可能被驱逐后重新加载，加载要以快照为准；
+ * 同一页的前台写回要等这一批写完，避免旧快照覆盖新内容。
+ */
+class PageWriter implements PageWriterStatsMXBean {
+
+    static final int MAX_BATCH = 256;                   // 每批最多写回的页数
+
+    // 后台线程和 MBeanServer 都引用着 writer，这里只弱引用缓存，忘记关闭的缓存仍然可以被回收
+    private final WeakReference<PageCacheImpl> pc;
+    private final FileChannel fc;
+    private final int pageSize;
+    private final ScheduledExecutorService executor;
+
+    private final Lock batchLock = new ReentrantLock(); // 收集并写回一批期间持有
+    private final ConcurrentSkipListMap<Integer, byte[]> writing = new ConcurrentSkipListMap<>(); // 本批的快照，按pgno排序
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+
+    PageWriter(PageCacheImpl pc, FileChannel fc, long intervalMs) {
+        this.pc = new WeakReference<>(pc);
+        this.fc = fc;
+        this.pageSize = pc.getPageSize();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::writeAll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // 一直写到没有未被引用的脏页为止
+    private void writeAll() {
+        int n;
+        do {
+            n = writeBatch();
+        } while (n == MAX_BATCH);
+    }
+
+    /**
+     * 收集并写回一批脏页，返回写回的页数
+     */
+    int writeBatch() {
+        PageCacheImpl cache = pc.get();
+        if (cache == null) {
+            return 0;
+        }
+        batchLock.lock();
+        try {
+            cache.collectDirtyPages(this, MAX_BATCH);
+            if (writing.isEmpty()) {
+                return 0;
+            }
+            int n = writing.size();
+            write();
+            fc.force(false);
+            batches.increment();
+            pagesWritten.add(n);
+            for (int pgno : writing.keySet()) {
+                cache.pageWritten(pgno);
+            }
+            return n;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        } finally {
+            writing.clear();
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * 登记一页的快照，由 collectDirtyPages 在页被标记为干净之前调用
+     */
+    void stage(int pgno, byte[] snapshot) {
+        writing.put(pgno, snapshot);
+    }
+
+    /**
+     * 页正在被写回时把快照拷贝到 dst，否则返回false
+     */
+    boolean takeStaged(int pgno, byte[] dst) {
+        byte[] snapshot = writing.get(pgno);
+        if (snapshot == null) {
+            return false;
+        }
+        System.arraycopy(snapshot, 0, dst, 0, snapshot.length);
+        return true;
+    }
+
+    /**
+     * 前台写回一页之前调用，该页在本批中时等本批写完
+     */
+    void awaitWritten(int pgno) {
+        if (writing.containsKey(pgno)) {
+            batchLock.lock();
+            batchLock.unlock();
+        }
+    }
+
+    // 按pgno顺序把连续的页合并成一次聚集写
+    // 除此之外对 fc 的读写都是定位读写，这里独占使用 channel 的 position
+    private void write() throws IOException {
+        List<ByteBuffer> run = new ArrayList<>();
+        int runStart = -1, prev = -1;
+        for (Map.Entry<Integer, byte[]> e : writing.entrySet()) {
+            int pgno = e.getKey();
+            if (!run.isEmpty() && pgno != prev + 1) {
+                writeRun(runStart, run);
+                run.clear();
+            }
+            if (run.isEmpty()) {
+                runStart = pgno;
+            }
+            run.add(ByteBuffer.wrap(e.getValue()));
+            prev = pgno;
+        }
+        writeRun(runStart, run);
+    }
+
+    private void writeRun(int startPgno, List<ByteBuffer> run) throws IOException {
+        ByteBuffer[] bufs = run.toArray(new ByteBuffer[0]);
+        ByteBuffer last = bufs[bufs.length - 1];
+        fc.position(PageCacheImpl.pageOffset(startPgno, pageSize));
+        while (last.hasRemaining()) {
+            fc.write(bufs);
+        }
+        writeCalls.increment();
+    }
+
+    /**
+     * 停止后台线程并把剩下的脏页写完
+     */
+    void close() {
+        shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        writeAll();
+    }
+
+    // 只停止后台线程，不等待也不写回，PageCacheImpl 没有关闭就被回收时调用
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+}
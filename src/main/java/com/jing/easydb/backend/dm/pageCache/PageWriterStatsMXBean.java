@@ -0,0 +1,16 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+/**
+ * 后台脏页写回的 JMX 接口
+ * ObjectName: com.jing.easydb:type=PageWriter,name=PageCacheImpl,id=实例编号
+ */
+public interface PageWriterStatsMXBean {
+    // 写回的批数，每批 fsync 一次
+    long getBatches();
+
+    // 写回的页数
+    long getPagesWritten();
+
+    // 聚集写的次数，pgno 连续的页合并为一次
+    long getWriteCalls();
+}
@@ -0,0 +1,242 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+import com.jing.easydb.backend.common.SubArray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageCacheImpl 的顺序预读
+ * <p>
+ * getForCache 按 pgno 连续递增地未命中时，由后台线程用一次大的定位读把后面 window 页读进预读缓冲，
+ * 之后对这些页的未命中直接从缓冲中取，不再各自同步读盘。
+ * 预读窗口在 [MIN_WINDOW, MAX_WINDOW] 之间自适应：连续用上一整个窗口就翻倍，有页被浪费就减半。
+ * <p>
+ * 页被写回磁盘后调用 invalidate 丢掉缓冲中的旧内容，正在读的那一批中对应的页装入时也会被跳过。
+ */
+class ReadAhead implements ReadAheadStatsMXBean {
+
+    static final int MIN_WINDOW = 4;
+    static final int MAX_WINDOW = 64;
+    private static final int SEQ_TRIGGER = 2;           // 连续递增未命中的次数达到后开始预读
+    private static final int MAX_BUFFERED = MAX_WINDOW * 2;
+
+    private final FileChannel fc;
+    private final int pageSize;
+    private final ExecutorService executor;
+
+    private final LinkedHashMap<Integer, SubArray> buffered = new LinkedHashMap<>(); // 已读入、尚未被取走的页，指向整批读入的数组
+    private int lastMiss = -1;                          // 上一次未命中的页号
+    private int seqCount;                               // 连续递增未命中的次数
+    private int window = MIN_WINDOW;
+    private int streak;                                 // 连续从缓冲取到的页数，用于扩大窗口
+    private int issuedTo;                               // 已发出预读的最大页号
+
+    // 正在进行的预读，同一时刻最多一批
+    private CompletableFuture<Void> inflight;
+    private int inflightFrom, inflightTo;               // [inflightFrom, inflightTo]
+    private final Set<Integer> inflightInvalidated = new HashSet<>();
+    private boolean inflightDiscarded;
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+
+    ReadAhead(FileChannel fc, int pageSize) {
+        this.fc = fc;
+        this.pageSize = pageSize;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "page-read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 把预读好的页拷贝到 dst，没有预读到则返回false
+     * 页正在被后台读取时等它读完
+     */
+    boolean take(int pgno, byte[] dst) {
+        CompletableFuture<Void> f;
+        synchronized (this) {
+            if (takeBuffered(pgno, dst)) {
+                return true;
+            }
+            if (inflight == null || pgno < inflightFrom || pgno > inflightTo) {
+                return false;
+            }
+            f = inflight;
+        }
+        f.join();
+        synchronized (this) {
+            return takeBuffered(pgno, dst);
+        }
+    }
+
+    private boolean takeBuffered(int pgno, byte[] dst) {
+        SubArray data = buffered.remove(pgno);
+        if (data == null) {
+            return false;
+        }
+        System.arraycopy(data.raw, data.start, dst, 0, pageSize);
+        hits.increment();
+        if (++streak >= window) {
+            window = Math.min(window * 2, MAX_WINDOW);
+            streak = 0;
+        }
+        return true;
+    }
+
+    /**
+     * getForCache 每次执行时调用，检测顺序访问并在需要时发出下一批预读
+     *
+     * @param pgno      本次未命中的页号
+     * @param pageCount 当前数据库文件的页数
+     */
+    synchronized void onMiss(int pgno, int pageCount) {
+        if (pgno == lastMiss + 1) {
+            seqCount++;
+        } else {
+            // 顺序流断开，从新的位置重新开始检测
+            seqCount = 0;
+            issuedTo = pgno;
+        }
+        lastMiss = pgno;
+        if (seqCount < SEQ_TRIGGER || inflight != null) {
+            return;
+        }
+        // 已预读的页还剩不到半个窗口时才发出下一批
+        if (issuedTo - pgno > window / 2) {
+            return;
+        }
+        int from = Math.max(pgno + 1, issuedTo + 1);
+        int to = Math.min(from + window - 1, pageCount);
+        if (from > to) {
+            return;
+        }
+        inflightFrom = from;
+        inflightTo = to;
+        inflightDiscarded = false;
+        issuedTo = to;
+        issued.add(to - from + 1);
+        inflight = CompletableFuture.runAsync(() -> load(from, to), executor);
+    }
+
+    // 后台线程：一次定位读读入 [from, to]
+    private void load(int from, int to) {
+        ByteBuffer buf = ByteBuffer.allocate((to - from + 1) * pageSize);
+        long offset = PageCacheImpl.pageOffset(from, pageSize);
+        try {
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, offset + buf.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 预读只是优化，读失败时交给同步读去报错
+            buf.position(0);
+        }
+        int pages = buf.position() / pageSize;
+        byte[] raw = buf.array();
+        synchronized (this) {
+            if (!inflightDiscarded) {
+                for (int i = 0; i < pages; i++) {
+                    int pgno = from + i;
+                    if (inflightInvalidated.contains(pgno)) {
+                        wasted.increment();
+                        continue;
+                    }
+                    buffered.put(pgno, new SubArray(raw, i * pageSize, (i + 1) * pageSize));
+                }
+                trim();
+            }
+            inflightInvalidated.clear();
+            inflight = null;
+        }
+    }
+
+    // 缓冲超过上限时丢掉最早读入的页
+    private void trim() {
+        Iterator<Map.Entry<Integer, SubArray>> it = buffered.entrySet().iterator();
+        while (buffered.size() > MAX_BUFFERED && it.hasNext()) {
+            it.next();
+            it.remove();
+            waste();
+        }
+    }
+
+    private void waste() {
+        wasted.increment();
+        window = Math.max(window / 2, MIN_WINDOW);
+        streak = 0;
+    }
+
+    /**
+     * 页被写回磁盘后调用，丢掉预读到的旧内容
+     */
+    synchronized void invalidate(int pgno) {
+        if (buffered.remove(pgno) != null) {
+            waste();
+        }
+        if (inflight != null && pgno >= inflightFrom && pgno <= inflightTo) {
+            inflightInvalidated.add(pgno);
+        }
+    }
+
+    /**
+     * 文件被截断时丢掉所有预读内容
+     */
+    synchronized void clear() {
+        buffered.clear();
+        inflightDiscarded = true;
+        lastMiss = -1;
+        seqCount = 0;
+        issuedTo = 0;
+    }
+
+    void close() {
+        shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 只停止后台线程，不等待，PageCacheImpl 没有关闭就被回收时调用
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getWasted() {
+        return wasted.sum();
+    }
+
+    @Override
+    public synchronized int getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,19 @@
+package com.jing.easydb.backend.dm.pageCache;
+
+/**
+ * 顺序预读的 JMX 接口
+ * ObjectName: com.jing.easydb:type=ReadAhead,name=PageCacheImpl,id=实例编号
+ */
+public interface ReadAheadStatsMXBean {
+    // 发出预读的页数
+    long getIssued();
+
+    // 未命中时直接从预读缓冲取到的页数
+    long getHits();
+
+    // 预读了却没用上就被丢弃的页数
+    long getWasted();
+
+    // 当前预读窗口大小（页）
+    int getWindow();
+}
@@ -10,18 +10,23 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    // 一个区间占用的大小
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    // 一个区间占用的大小，随页大小变化
+    private final int threshold;
 
     private Lock lock;
     /**
      * 比如 lists[n] = new ArrayList();
-     * 即n个区间，其中该lists[n]中的PageInfo的页面大小为[THRESHOLD * n,THRESHOLD * (n+1)) (B)
+     * 即n个区间，其中该lists[n]中的PageInfo的页面大小为[threshold * n,threshold * (n+1)) (B)
      */
     private List<PageInfo>[] lists; // 每个List存储有相同空闲空间的PageInfo
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
+        this(PageCache.PAGE_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
         lock = new ReentrantLock();
         lists = new List[INTERVALS_NO + 1]; // 每个 List 存放 [x,y) 范围内的数据，所以需要 +1 个桶
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
@@ -38,13 +43,32 @@ public class PageIndex {
     public void add(int pgno, int freeSpace) {
         lock.lock();
         try {
-            int number = freeSpace / THRESHOLD; // 计算空闲空间大小对应的区间编号
+            int number = freeSpace / threshold; // 计算空闲空间大小对应的区间编号
             lists[number].add(new PageInfo(pgno, freeSpace)); // 在对应的区间列表中添加一个新的 PageInfo 对象
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 移除页面已有的所有 PageInfo，再按新的空闲空间大小添加一个
+     * 页面的空闲空间在索引之外变大时（如被整页清空）使用，避免留下空闲空间过小的旧项
+     *
+     * @param pgno      页面编号
+     * @param freeSpace 页面新的空闲空间大小
+     */
+    public void replace(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            for (List<PageInfo> list : lists) {
+                list.removeIf(pi -> pi.pgno == pgno);
+            }
+            lists[freeSpace / threshold].add(new PageInfo(pgno, freeSpace));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 根据给定的空间大小选择一个 PageInfo 对象。
      *
@@ -54,7 +78,7 @@ public class PageIndex {
     public PageInfo select(int spaceSize) {
         lock.lock();
         try {
-            int number = spaceSize / THRESHOLD; // 计算需要的空间大小对应的区间编号
+            int number = spaceSize / threshold; // 计算需要的空间大小对应的区间编号
             // 此处+1主要为了向上取整
             /*
                 1、假需要存储的字节大小为5168，此时计算出来的区间号是25，但是25*204=5100显然是不满足条件的
@@ -65,11 +89,14 @@ public class PageIndex {
              */
             if (number < INTERVALS_NO) number++; // 如果计算出的区间编号小于总的区间数，编号加一
             while (number <= INTERVALS_NO) {
-                if (lists[number].size() == 0) {
-                    number++;
-                    continue;
+                List<PageInfo> list = lists[number];
+                // 最后一个区间没有上界，也没有办法再向上取整，要逐个确认空闲空间是否真的足够
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i).freeSpace >= spaceSize) {
+                        return list.remove(i);
+                    }
                 }
-                return lists[number].remove(0);
+                number++;
             }
             return null;
         } finally {
@@ -5,9 +5,11 @@ import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.DataManager;
 import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.tm.TransactionManagerImpl;
+import com.jing.easydb.common.Error;
 import com.jing.easydb.common.Parser;
 
 
+import com.jing.easydb.backend.im.Node.DeleteRes;
 import com.jing.easydb.backend.im.Node.InsertAndSplitRes;
 import com.jing.easydb.backend.im.Node.LeafSearchRangeRes;
 import com.jing.easydb.backend.im.Node.SearchNextRes;
@@ -15,7 +17,10 @@ import com.jing.easydb.backend.im.Node.SearchNextRes;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -23,7 +28,11 @@ public class BPlusTree {
     DataManager dm;
     long bootUid; // 通过它可以得到 bootDataItem
     DataItem bootDataItem; // 通过它可以得到 B+树的 rootUid
-    Lock bootLock;
+    Lock bootLock; // 串行化对 bootDataItem 的修改
+    volatile long rootUid; // bootDataItem 中 rootUid 的副本，读取时不必加锁
+    int nodeSize; // 节点的长度，同一棵树中所有节点等长
+    Reclaimer reclaimer; // 合并掉的结点等到没有操作会访问它之后再释放
+    InnerNodeCache innerCache; // 解码后的内部结点，查找时代替读取数据项
 
     /**
      * 初始化一颗 BPlusTree
@@ -32,7 +41,8 @@ public class BPlusTree {
      * @return bootUid
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        // 节点占满一个数据项的最大长度，每个节点独占一页
+        byte[] rawRoot = Node.newNilRootRaw(Node.nodeSize(dm.maxDataSize()));
         // 包装成数据项 DataItem，并插入到 Page 中，返回唯一标识符
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         // 将rootUid也包装成 DataItem, 也存放到 Page 中,生成 bootUid
@@ -54,18 +64,19 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.reclaimer = new Reclaimer(dm);
+        t.innerCache = new InnerNodeCache();
+        SubArray sa = bootDataItem.data();
+        t.rootUid = Parser.getLong(sa.raw, sa.start);
+        Node root = Node.loadNode(t, t.rootUid());
+        t.nodeSize = root.raw.end - root.raw.start;
+        root.release();
         return t;
     }
 
     // 根据 bootUid -> 得到rootUid
-    private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
-        } finally {
-            bootLock.unlock();
-        }
+    long rootUid() {
+        return rootUid;
     }
 
     /**
@@ -76,73 +87,98 @@ public class BPlusTree {
      * @param rightKey 第一个孩子对应的索引值(应该写错了原本)
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private void updateRootUid(long left, long right, byte[] rightKey) throws Exception {
         bootLock.lock();
         try {
             // 1、创建根结点对应的二进制数据
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(nodeSize, left, right, rightKey);
             // 2、将根结点对应的二进制数据持久化，并返回它的全局ID （此处依赖DataManager）
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            // 3、修改数据项之前，获取写锁，并发安全性考虑
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            // 4、修改bootDataItem，将新的rootUid保存到对应为止
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            // 4、修改数据项之后，记录更改日志，并释放写锁
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            setRootUid(newRootUid);
         } finally {
             bootLock.unlock();
         }
     }
 
+    // 把新的 rootUid 写进 bootDataItem，调用时持有 bootLock
+    private void setRootUid(long newRootUid) {
+        // 修改数据项之前，获取写锁，并发安全性考虑
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        // 修改bootDataItem，将新的rootUid保存到对应为止
+        Parser.putLong(diRaw.raw, diRaw.start, newRootUid);
+        // 修改数据项之后，记录更改日志，并释放写锁
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        rootUid = newRootUid;
+    }
+
     /**
-     * 递归查找，直到找到 key 所在叶子结点的 nodeUid
+     * 查找 key 所在叶子结点的 nodeUid
+     * <p>
+     * 内部结点先在 innerCache 中找，命中时不读取数据项；知道子结点是叶子之后直接返回它的 uid，
+     * 点查只有叶子这一层需要访问存储
      *
      * @param nodeUid Node结点的唯一表示符
      * @param key     需要查找的索引值
      * @return 存在该索引 key 的叶子结点的 nodeUid
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        // 1、根据 nodeUid 加载对应的 Node 对象
-        Node node = Node.loadNode(this, nodeUid);
-        // 2、判断该 Node 是否是叶子结点 (根据raw的第一个字节判断)
-        boolean isLeaf = node.isLeaf();
-        // 3、释放这个结点对应的持久化数据(暂时没搞懂为啥)
-        node.release();
+    private long searchLeaf(long nodeUid, byte[] key) throws Exception {
+        return searchLeaf(nodeUid, key, true);
+    }
 
-        if (isLeaf) {
-            // 4.1、叶子结点，直接返回nodeUid
-            return nodeUid;
-        } else {
-            // 4.2、非叶子结点，则递归，继续向下遍历查找
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    // leftmost 为 false 时找 key 最后可能出现的叶子，更大的 key 都不在它左边
+    long searchLeaf(long nodeUid, byte[] key, boolean leftmost) throws Exception {
+        InnerNodeCache.Entry parent = null; // 指向 nodeUid 的缓存条目，读到 nodeUid 后记下子结点的类型
+        while (true) {
+            InnerNodeCache.Entry entry = innerCache.get(nodeUid);
+            if (entry == null) {
+                Node node = Node.loadNode(this, nodeUid);
+                try {
+                    if (node.isLeaf()) {
+                        if (parent != null) {
+                            parent.childKind = InnerNodeCache.LEAF;
+                        }
+                        return nodeUid;
+                    }
+                    if (parent != null) {
+                        parent.childKind = InnerNodeCache.INNER;
+                    }
+                    entry = decodeInner(node);
+                    if (entry == null) {
+                        // 已经被合并的结点不进入缓存，它的内容仍然完整，照常向下或向右查找
+                        SearchNextRes res = node.searchNext(key, leftmost);
+                        parent = null;
+                        nodeUid = res.uid != 0 ? res.uid : res.siblingUid;
+                        continue;
+                    }
+                } finally {
+                    node.release();
+                }
+            }
+            long next = entry.route(key, leftmost);
+            if (next == 0) {
+                // 当前结点中找不到，从兄弟结点中继续找
+                parent = null;
+                nodeUid = entry.sibling;
+                continue;
+            }
+            if (entry.childKind == InnerNodeCache.LEAF) {
+                return next;
+            }
+            parent = entry;
+            nodeUid = next;
         }
     }
 
-    /**
-     * 查找下一个存在 key 的 Node结点，找到直接返回子节点的 nodeUid，
-     * 优先在当前结点中找，找到则返回子节点，找不到则从兄弟结点中继续找
-     *
-     * @param nodeUid Node的唯一标识
-     * @param key     索引值
-     * @return 下一个存在 key 的 nodeuid
-     * @throws Exception
-     */
-    private long searchNext(long nodeUid, long key) throws Exception {
-        while (true) {
-            // 1、根据nodeUid获取对应的Node对象
-            Node node = Node.loadNode(this, nodeUid);
-            // 2、查找存在该 key 的下一个结点
-            SearchNextRes res = node.searchNext(key);
-            // 3、释放当前持有的缓存引用，计数减1
-            node.release();
-            // 4.1、uid不为0，表示当前结点的子节点存在key，返回子节点的 nodeUid
-            if (res.uid != 0) return res.uid;
-            // 4.2、uid为0，表示当前结点及其子节点不存在该key，查询其兄弟结点
-            nodeUid = res.siblingUid;
+    // 解码内部结点并放进缓存，已经被合并的结点返回 null
+    private InnerNodeCache.Entry decodeInner(Node node) {
+        long gen = innerCache.generation();
+        InnerNodeCache.Entry entry = node.decode();
+        if (entry != null) {
+            innerCache.put(node.uid, entry, gen);
         }
+        return entry;
     }
 
     /**
@@ -153,9 +189,85 @@ public class BPlusTree {
      * @throws Exception
      */
     public List<Long> search(long key) throws Exception {
+        return search(Node.longKey(key));
+    }
+
+    public List<Long> search(byte[] key) throws Exception {
         return searchRange(key, key);
     }
 
+    public List<List<Long>> searchMany(long[] keys) throws Exception {
+        byte[][] k = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            k[i] = Node.longKey(keys[i]);
+        }
+        return searchMany(k);
+    }
+
+    /**
+     * 批量查找，返回的第 i 项是 keys[i] 对应的 uid 列表，与逐个 search 相同
+     * <p>
+     * 先按 key 排序，从左到右访问叶子：下一个 key 仍在当前叶子中时不再从根查找，每个叶子只加载一次
+     */
+    public List<List<Long>> searchMany(byte[][] keys) throws Exception {
+        List<List<Long>> result = new ArrayList<>(Collections.<List<Long>>nCopies(keys.length, null));
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        Node leaf = null;
+        List<Long> last = null; // 上一个 key 的结果，重复的 key 直接复用：叶子可能已经越过了它
+        int slot = reclaimer.enter();
+        try {
+            Integer[] order = sortedOrder(keys);
+            for (int n = 0; n < order.length; n++) {
+                int i = order[n];
+                byte[] key = keys[i];
+                if (n > 0 && Arrays.equals(key, keys[order[n - 1]])) {
+                    result.set(i, new ArrayList<>(last));
+                    continue;
+                }
+                boolean fresh = false;
+                while (true) {
+                    if (leaf == null || leaf.isDead()) {
+                        if (leaf != null) {
+                            leaf.release();
+                        }
+                        leaf = Node.loadNode(this, searchLeaf(rootUid(), key));
+                        fresh = true;
+                    }
+                    leaf.leafSearchRange(key, key, res);
+                    if (res.count == 0 && res.siblingUid != 0 && !fresh) {
+                        // key 超出了当前叶子，从根重新查找，比沿兄弟结点逐个扫描快
+                        leaf.release();
+                        leaf = null;
+                        continue;
+                    }
+                    break;
+                }
+                List<Long> uids = new ArrayList<>();
+                while (true) {
+                    for (int j = 0; j < res.count; j++) {
+                        uids.add(res.uids[j]);
+                    }
+                    if (res.siblingUid == 0) {
+                        break;
+                    }
+                    // 重复的 key 延续到兄弟结点中，之后更大的 key 也从那里开始找
+                    Node next = Node.loadNode(this, res.siblingUid);
+                    leaf.release();
+                    leaf = next;
+                    leaf.leafSearchRange(key, key, res);
+                }
+                result.set(i, uids);
+                last = uids;
+            }
+        } finally {
+            if (leaf != null) {
+                leaf.release();
+            }
+            reclaimer.exit(slot);
+        }
+        return result;
+    }
+
     /**
      * 同上，查找 [leftKey,rightKey] 对应的 nodeUid列表
      *
@@ -165,78 +277,676 @@ public class BPlusTree {
      * @throws Exception
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        // 1、查找leftKey所在的叶子结点的 nodeUid
-        long leafUid = searchLeaf(rootUid, leftKey);
+        return searchRange(Node.longKey(leftKey), Node.longKey(rightKey));
+    }
+
+    /**
+     * 按无符号字节序查找 [leftKey,rightKey] 对应的 nodeUid列表，按 key 的顺序返回
+     *
+     * @param rightKey 索引右值，null 表示没有上界
+     */
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey) throws Exception {
         List<Long> uids = new ArrayList<>();
-        while (true) {
-            // 2、加载存放 leftKey 的叶子结点
-            Node leaf = Node.loadNode(this, leafUid);
-            // 3、查找[leftKey,rightKey]范围内的
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            // 4、回收引用，计数器减1
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
+        try (Cursor cursor = cursor(leftKey, rightKey, 0)) {
+            while (cursor.next()) {
+                uids.add(cursor.uid());
             }
         }
         return uids;
     }
 
+    public Cursor cursor(long leftKey, long rightKey, long limit) throws Exception {
+        return cursor(Node.longKey(leftKey), Node.longKey(rightKey), limit);
+    }
+
+    /**
+     * 打开 [leftKey,rightKey] 上的游标，按 key 的顺序逐个叶子返回 uid，不需要把结果全部放在内存中。
+     * 用完要 close，提前结束扫描时也一样
+     *
+     * @param rightKey 索引右值，null 表示没有上界
+     * @param limit    最多返回的 uid 个数，0 表示不限制
+     */
+    public Cursor cursor(byte[] leftKey, byte[] rightKey, long limit) throws Exception {
+        // 游标关闭之前，它可能访问到的结点都不会被回收
+        int slot = reclaimer.enter();
+        try {
+            // 查找leftKey所在的叶子结点的 nodeUid
+            long leafUid = searchLeaf(rootUid(), leftKey);
+            return new Cursor(this, leafUid, leftKey, rightKey, limit, false, slot);
+        } catch (Exception e) {
+            reclaimer.exit(slot);
+            throw e;
+        }
+    }
+
+    public Cursor descendingCursor(long leftKey, long rightKey, long limit) throws Exception {
+        return descendingCursor(Node.longKey(leftKey), Node.longKey(rightKey), limit);
+    }
+
+    /**
+     * 同 cursor，但从 rightKey 开始按 key 从大到小返回，沿叶子的左兄弟指针向左扫描；
+     * 取最大的 N 个只访问 N 个左右的 uid，不需要扫描整个范围再反转
+     *
+     * @param rightKey 索引右值，null 表示没有上界
+     */
+    public Cursor descendingCursor(byte[] leftKey, byte[] rightKey, long limit) throws Exception {
+        int slot = reclaimer.enter();
+        try {
+            // 起始的叶子由游标自己查找，它要在加锁后确认叶子没有分裂
+            return new Cursor(this, 0, leftKey, rightKey, limit, true, slot);
+        } catch (Exception e) {
+            reclaimer.exit(slot);
+            throw e;
+        }
+    }
+
+    // 比任何能插入的 key 都大
+    byte[] maxKey() {
+        byte[] key = new byte[maxKeySize() + 1];
+        Arrays.fill(key, (byte) 0xFF);
+        return key;
+    }
+
     // 向 BPlusTree 中插入新结点 key是结点的索引值，uid是对应
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if (res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        insert(Node.longKey(key), uid);
+    }
+
+    /**
+     * 插入变长的 key，按无符号字节序排列，长度不能超过 {@link #maxKeySize()}
+     * <p>
+     * 绝大多数插入不会引起分裂，先乐观地插入：不加锁向下查找，只锁住叶子，确认父结点在查找后没有变化，
+     * 且叶子插入后不会分裂时直接插入。叶子需要分裂，或多次被并发修改打断时，改用悲观的锁耦合插入
+     */
+    public void insert(byte[] key, long uid) throws Exception {
+        if (key.length > maxKeySize()) {
+            throw Error.KeyTooLargeException;
+        }
+        int slot = reclaimer.enter();
+        try {
+            insertRun(new byte[][]{key}, new long[]{uid}, 0, 1);
+        } finally {
+            reclaimer.exit(slot);
         }
     }
 
-    class InsertRes {
-        long newNode, newKey;
+    public void insertBatch(long[] keys, long[] uids) throws Exception {
+        byte[][] k = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            k[i] = Node.longKey(keys[i]);
+        }
+        insertBatch(k, uids);
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        // 1、查询nodeUid对应的Node是不是叶子结点
-        boolean isLeaf = node.isLeaf();
-        node.release(); // 使用完毕后，一定要回归计数
+    /**
+     * 批量插入 [keys[i], uids[i]]，结果与逐个 insert 相同
+     * <p>
+     * 先按 key 排序，落在同一个叶子上的一段 key 共用一次查找，在一次加锁中插入，只记录一条日志；
+     * 叶子的范围由父结点中的分隔 key 确定。会引起分裂的 key 单独走悲观插入，之后继续成段插入
+     */
+    public void insertBatch(byte[][] keys, long[] uids) throws Exception {
+        if (keys.length != uids.length) {
+            throw Error.BatchSizeMismatchException;
+        }
+        for (byte[] key : keys) {
+            if (key.length > maxKeySize()) {
+                throw Error.KeyTooLargeException;
+            }
+        }
+        Integer[] order = sortedOrder(keys);
+        byte[][] sortedKeys = new byte[keys.length][];
+        long[] sortedUids = new long[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = keys[order[i]];
+            sortedUids[i] = uids[order[i]];
+        }
+        int slot = reclaimer.enter();
+        try {
+            for (int i = 0; i < sortedKeys.length; ) {
+                i += insertRun(sortedKeys, sortedUids, i, sortedKeys.length);
+            }
+        } finally {
+            reclaimer.exit(slot);
+        }
+    }
 
-        InsertRes res = null;
-        if (isLeaf) {
-            // 2.1、是叶子结点，
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            // 2.2、不是叶子结点
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if (ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
+    // 按 key 的无符号字节序排列的下标，相等的 key 保持原来的顺序
+    private static Integer[] sortedOrder(byte[][] keys) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+        return order;
+    }
+
+    /**
+     * 插入排好序的 keys[from, to) 中从 from 开始、落在同一个叶子上的一段，返回插入的个数，至少为 1
+     */
+    private int insertRun(byte[][] keys, long[] uids, int from, int to) throws Exception {
+        for (int i = 0; i < Node.OPTIMISTIC_RETRIES; i++) {
+            int res = insertOptimistic(keys, uids, from, to);
+            if (res > 0) {
+                return res;
+            }
+            if (res == NEED_SPLIT) {
+                break;
             }
         }
-        return res;
+        insertPessimistic(keys[from], uids[from]);
+        return 1;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    // insertOptimistic 返回插入的个数，或者以下两种失败
+    private static final int RETRY = 0; // 查找路径被并发修改
+    private static final int NEED_SPLIT = -1; // 叶子放不下，可能要分裂
+
+    /**
+     * 乐观地插入排好序的 keys[from, to) 中从 from 开始、属于同一个叶子的一段，返回插入的个数
+     */
+    private int insertOptimistic(byte[][] keys, long[] uids, int from, int to) throws Exception {
+        byte[] key = keys[from];
+        boolean batch = to - from > 1; // 只有批量插入才需要叶子的上界
+        long rootUid = rootUid();
+        long nodeUid = rootUid;
+        // 指向叶子的父结点及读取它时的结果，持有引用直到校验完成，保证版本不会因为换出而重置
+        Node parent = null;
+        SearchNextRes parentRes = null;
+        InnerNodeCache.Entry parentEntry = null; // 指向 nodeUid 的缓存条目，读到 nodeUid 后记下子结点的类型
+        try {
+            while (true) {
+                InnerNodeCache.Entry entry = innerCache.get(nodeUid);
+                if (entry != null && entry.childKind == InnerNodeCache.INNER) {
+                    // 子结点仍是内部结点，这一层不需要校验，直接用缓存；叶子的父结点总是读取数据项
+                    long next = entry.route(key, false);
+                    parentEntry = null;
+                    nodeUid = next != 0 ? next : entry.sibling;
+                    continue;
+                }
+                Node node = Node.loadNode(this, nodeUid);
+                if (parentEntry != null) {
+                    parentEntry.childKind = node.isLeaf() ? InnerNodeCache.LEAF : InnerNodeCache.INNER;
+                }
+                if (node.isLeaf()) {
+                    node.lock();
+                    try {
+                        // 父结点没有变化，叶子就没有分裂过，key 仍然属于它
+                        boolean valid = parent == null ? rootUid == rootUid() : parent.validate(parentRes);
+                        if (!valid) {
+                            return RETRY;
+                        }
+                        // 小于上界的 key 都属于这个叶子，根是叶子时没有上界
+                        int end = from + 1;
+                        byte[] bound = parent == null ? null : parentRes.bound;
+                        while (end < to && (bound == null || Arrays.compareUnsigned(keys[end], bound) < 0)) {
+                            end++;
+                        }
+                        int n = node.insertBatch(keys, uids, from, end);
+                        return n > 0 ? n : NEED_SPLIT;
+                    } finally {
+                        node.unlock();
+                        node.release();
+                    }
+                }
+                if (entry == null) {
+                    entry = decodeInner(node);
+                }
+                SearchNextRes res = node.searchNext(key, false, batch);
+                if (res.stamp == 0 || res.dead) {
+                    // 加读锁才读到，之后无法校验；或者结点已经被合并，其中的分隔 key 不再准确
+                    node.release();
+                    return RETRY;
+                }
+                // 内部结点被并发分裂时 key 可能已经移到右兄弟，和查找一样向右移动
+                if (parent != null) {
+                    parent.release();
+                }
+                parent = node;
+                parentRes = res;
+                parentEntry = res.uid != 0 ? entry : null;
+                nodeUid = res.uid != 0 ? res.uid : res.siblingUid;
+            }
+        } finally {
+            if (parent != null) {
+                parent.release();
+            }
+        }
+    }
+
+    /**
+     * 锁耦合(latch crabbing)：从根开始逐层对结点加写锁，子结点插入后一定不会分裂时释放它所有祖先的锁。
+     * 最后持有的是从某个安全结点到叶子的一条路径，分裂只会沿着这条路径向上传递，且其中的结点不会被别人修改
+     */
+    private void insertPessimistic(byte[] key, long uid) throws Exception {
+        List<Node> path = new ArrayList<>();
+        try {
+            Node node = lockRoot();
+            path.add(node);
+
+            while (!node.isLeaf()) {
+                // 父结点被锁住，其中的分隔 key 是准确的，不需要向右移动
+                SearchNextRes res = node.searchNextRaw(key, false);
+                assert res.uid != 0;
+                Node child = Node.loadNode(this, res.uid);
+                child.lock();
+                if (child.isSafe(child.isLeaf() ? key.length : maxKeySize())) {
+                    unlockAll(path);
+                }
+                path.add(child);
+                node = child;
+            }
+
+            // 自下而上插入，分裂出的新结点插入到父结点中
+            long son = uid;
+            byte[] sonKey = key;
+            for (int i = path.size() - 1; i >= 0; i--) {
+                InsertAndSplitRes iasr = path.get(i).insertAndSplit(son, sonKey);
+                if (iasr.newSon == 0) {
+                    return;
+                }
+                son = iasr.newSon;
+                sonKey = iasr.newKey;
+            }
+            // 分裂一直传到了根，此时根仍然被锁住
+            updateRootUid(path.get(0).uid, son, sonKey);
+        } finally {
+            unlockAll(path);
+        }
+    }
+
+    // 对根结点加写锁
+    private Node lockRoot() throws Exception {
         while (true) {
-            Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            long rootUid = rootUid();
+            Node node = Node.loadNode(this, rootUid);
+            node.lock();
+            if (rootUid == rootUid()) {
+                return node;
+            }
+            // 等锁期间根结点分裂或者被替换了
+            node.unlock();
             node.release();
-            if (iasr.siblingUid != 0) {
-                nodeUid = iasr.siblingUid;
-            } else {
-                InsertRes res = new InsertRes();
-                res.newNode = iasr.newSon;
-                res.newKey = iasr.newKey;
-                return res;
+        }
+    }
+
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(Node.longKey(key), uid);
+    }
+
+    /**
+     * 删除一条 [key, uid]，不存在时返回 false
+     * <p>
+     * 合并是惰性的：只锁住所在的叶子删除，叶子因此不到 1/4 满时，再用锁耦合从根找到它，和父结点中相邻的兄弟合并，
+     * 合并后超过 3/4 满就不合并，避免马上又分裂。父结点因此不到 1/4 满时继续向上合并，
+     * 根结点只剩一个子结点时由子结点代替。合并掉的结点等到没有操作能访问它之后，整页还给 DataManager
+     */
+    public boolean delete(byte[] key, long uid) throws Exception {
+        int slot = reclaimer.enter();
+        try {
+            while (true) {
+                // 重复的 key 可能分布在多个叶子中，从最左边的开始找
+                long leafUid = searchLeaf(rootUid(), key);
+                Boolean found = deleteFromLeaf(leafUid, key, uid);
+                if (found != null) {
+                    return found;
+                }
+            }
+        } finally {
+            reclaimer.exit(slot);
+        }
+    }
+
+    // 从 leafUid 开始向右找到并删除，遇到已经被合并的叶子时返回 null，由调用方从根重新查找
+    private Boolean deleteFromLeaf(long leafUid, byte[] key, long uid) throws Exception {
+        byte[] routeKey;
+        while (true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            leaf.lock();
+            try {
+                if (leaf.isDead()) {
+                    return null;
+                }
+                DeleteRes res = leaf.deleteEntry(key, uid);
+                if (res.found) {
+                    if (leafUid == rootUid() || leaf.usedSize() >= underfullSize()) {
+                        return true;
+                    }
+                    // 之后用它剩下的第一个 key 从根找回这个叶子
+                    routeKey = leaf.firstKey();
+                    if (routeKey == null) {
+                        routeKey = key;
+                    }
+                    break;
+                }
+                if (res.siblingUid == 0) {
+                    return false;
+                }
+                leafUid = res.siblingUid;
+            } finally {
+                leaf.unlock();
+                leaf.release();
             }
         }
+        merge(leafUid, routeKey);
+        return true;
+    }
+
+    /**
+     * 用锁耦合从根找到叶子 leafUid，自下而上合并不到 1/4 满的结点。
+     * 持有父结点的锁才能合并两个子结点，子结点少一项后仍不会不到 1/4 满时，合并不会再向上传递，释放它的祖先。
+     * 按 key 找到的不是这个叶子时（它全是与上界相等的重复 key），放弃合并
+     */
+    private void merge(long leafUid, byte[] key) throws Exception {
+        List<Node> path = new ArrayList<>();
+        try {
+            Node node = lockRoot();
+            path.add(node);
+            if (node.isLeaf()) {
+                return;
+            }
+            while (true) {
+                SearchNextRes res = node.searchNextRaw(key, false);
+                assert res.uid != 0;
+                Node child = Node.loadNode(this, res.uid);
+                child.lock();
+                path.add(child);
+                if (child.isLeaf()) {
+                    if (child.uid != leafUid) {
+                        return;
+                    }
+                    break;
+                }
+                if (child.usedSize() - Node.SLOT_SIZE - maxKeySize() >= underfullSize()) {
+                    // 只保留它自己
+                    path.remove(path.size() - 1);
+                    unlockAll(path);
+                    path.add(child);
+                }
+                node = child;
+            }
+
+            for (int i = path.size() - 1; i > 0; i--) {
+                Node n = path.get(i);
+                if (n.usedSize() >= underfullSize() || !mergeWithSibling(path.get(i - 1), n)) {
+                    return;
+                }
+            }
+            Node top = path.get(0);
+            if (top.uid == rootUid() && !top.isLeaf() && Node.getRawNoKeys(top.raw) == 1) {
+                collapseRoot(top);
+            }
+        } finally {
+            unlockAll(path);
+        }
+    }
+
+    // n 和父结点中右边（没有时左边）的兄弟合并，调用时持有 parent 和 n 的锁
+    private boolean mergeWithSibling(Node parent, Node n) throws Exception {
+        int noKeys = Node.getRawNoKeys(parent.raw);
+        int i = parent.indexOfSon(n.uid);
+        assert i >= 0;
+        if (noKeys == 1) {
+            return false;
+        }
+        int kth = i + 1 < noKeys ? i : i - 1;
+        Node other = Node.loadNode(this, Node.getRawKthSon(parent.raw, kth == i ? i + 1 : i - 1));
+        other.lock();
+        Node left = kth == i ? n : other;
+        Node right = kth == i ? other : n;
+        try {
+            if (!left.mergeRight(right, mergeLimit())) {
+                return false;
+            }
+            parent.removeMergedSon(kth);
+        } finally {
+            other.unlock();
+            other.release();
+        }
+        reclaimer.retire(right.uid);
+        return true;
+    }
+
+    // 根结点只剩一个子结点，由子结点作为新的根，调用时持有根结点的锁
+    private void collapseRoot(Node root) {
+        long son = Node.getRawKthSon(root.raw, 0);
+        root.markDead();
+        bootLock.lock();
+        try {
+            setRootUid(son);
+        } finally {
+            bootLock.unlock();
+        }
+        reclaimer.retire(root.uid);
+    }
+
+    // 结点的内容不到这个长度时要和兄弟合并
+    private int underfullSize() {
+        return nodeSize / 4;
+    }
+
+    // 合并后的结点不能超过的长度
+    private int mergeLimit() {
+        return nodeSize * 3 / 4;
+    }
+
+    private static void unlockAll(List<Node> path) {
+        for (Node n : path) {
+            n.unlock();
+            n.release();
+        }
+        path.clear();
+    }
+
+    /**
+     * 从按 key 升序排列的 [key, uid] 自底向上构建整棵树，只能用于空树，期间不能有其他线程读写这棵树
+     * <p>
+     * 叶子从左到右按 fillFactor 填充，写满一个就把它在父层的分隔 key 交给上一层，各层同时推进，
+     * 最后只写一次 bootDataItem 切换根节点。每个节点只产生一条插入日志，不像逐条 insert 那样
+     * 每次都要从根向下查找并记录整个节点的前后镜像。
+     * <p>
+     * 节点的兄弟指针要在写入时确定，所以每层攒够 BULK_BATCH 个节点后从右向左写入，
+     * 只有一批最右的节点需要在下一批写入后补一次兄弟指针
+     *
+     * @param sorted     按无符号字节序非递减排列的 [key, uid]
+     * @param fillFactor 节点的填充率，(0, 1]，留出的空间给之后的插入，避免马上分裂
+     */
+    public void bulkLoad(Iterator<Map.Entry<byte[], Long>> sorted, double fillFactor) throws Exception {
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw Error.InvalidFillFactorException;
+        }
+        long oldRootUid = rootUid();
+        Node oldRoot = Node.loadNode(this, oldRootUid);
+        boolean empty = Node.getRawIfLeaf(oldRoot.raw) && Node.getRawNoKeys(oldRoot.raw) == 0;
+        oldRoot.release();
+        if (!empty) {
+            throw Error.TreeNotEmptyException;
+        }
+
+        LevelBuilder leaves = new LevelBuilder(true, (int) (nodeSize * fillFactor));
+        byte[] last = null;
+        while (sorted.hasNext()) {
+            Map.Entry<byte[], Long> e = sorted.next();
+            byte[] key = e.getKey();
+            if (key.length > maxKeySize()) {
+                throw Error.KeyTooLargeException;
+            }
+            if (last != null && Arrays.compareUnsigned(last, key) > 0) {
+                throw Error.UnsortedKeysException;
+            }
+            leaves.add(key, e.getValue());
+            last = key;
+        }
+        if (last == null) {
+            return;
+        }
+        long rootUid = leaves.finish();
+        bootLock.lock();
+        try {
+            setRootUid(rootUid);
+        } finally {
+            bootLock.unlock();
+        }
+    }
+
+    static final int BULK_BATCH = 64;
+
+    /**
+     * bulkLoad 中构建一层节点，收到的 [key, son] 有序，节点写入后把 [分隔key, 节点uid] 交给上一层
+     */
+    private class LevelBuilder {
+        final boolean leaf;
+        final int budget;                   // 每个节点最多填充的字节数
+        LevelBuilder parent;
+        long written;                       // 本层已写入的节点数
+
+        // 正在填充的节点，以及按节点格式编码后的长度所需的统计
+        Node.Entries cur = new Node.Entries();
+        byte[] first;
+        int prefixLen, finiteKeys;
+        long keyBytes;
+
+        // 已填满、等待写入的节点及它们在父层的 key，null 表示正无穷
+        List<Node.Entries> batch = new ArrayList<>();
+        List<byte[]> batchKeys = new ArrayList<>();
+        long tailUid;                       // 上一批最右的节点，兄弟指针等这一批写入后再补上
+
+        LevelBuilder(boolean leaf, int budget) {
+            this.leaf = leaf;
+            this.budget = budget;
+        }
+
+        void add(byte[] key, long son) throws Exception {
+            int n = cur.size();
+            // 填充率再低每个节点也至少放两项，否则上层节点数不会减少；但无论如何不能超过节点长度
+            long size = n > 0 ? sizeWith(key) : 0;
+            if (size > nodeSize || (n >= 2 && size > budget)) {
+                byte[] lastKey = cur.keys.get(n - 1);
+                // 叶子向上提交最短的分隔 key，内部节点的最后一个 key 就是它的上界
+                batch.add(cur);
+                batchKeys.add(leaf ? Node.separator(lastKey, key) : lastKey);
+                cur = new Node.Entries();
+                first = null;
+                finiteKeys = 0;
+                keyBytes = 0;
+                if (batch.size() == BULK_BATCH) {
+                    flushBatch();
+                }
+            }
+            cur.add(cur.size(), key, son);
+            if (key != null) {
+                prefixLen = first == null ? key.length : Math.min(prefixLen, Node.commonPrefixLen(first, key));
+                if (first == null) {
+                    first = key;
+                }
+                finiteKeys++;
+                keyBytes += key.length;
+            }
+        }
+
+        // 再加入 key 后当前节点编码的长度
+        private long sizeWith(byte[] key) {
+            int plen = prefixLen, finite = finiteKeys;
+            long bytes = keyBytes;
+            if (key != null) {
+                plen = first == null ? key.length : Math.min(prefixLen, Node.commonPrefixLen(first, key));
+                finite++;
+                bytes += key.length;
+            }
+            if (finite == 0) {
+                plen = 0;
+            }
+            return Node.NODE_HEADER_SIZE + plen + (long) (cur.size() + 1) * Node.SLOT_SIZE + bytes - (long) finite * plen;
+        }
+
+        /**
+         * 写出剩下的节点，返回整棵树的根：本层只有一个节点时它就是根，否则继续完成上一层
+         */
+        long finish() throws Exception {
+            // 每层最右的节点在父层的 key 是正无穷
+            batch.add(cur);
+            batchKeys.add(null);
+            if (written == 0 && batch.size() == 1) {
+                return writeNode(cur, 0);
+            }
+            flushBatch();
+            return parent.finish();
+        }
+
+        // 从右向左写入这一批节点，每个节点的兄弟就是刚写入的右边的节点
+        private void flushBatch() throws Exception {
+            int n = batch.size();
+            long[] uids = new long[n];
+            long next = 0;
+            for (int i = n - 1; i >= 0; i--) {
+                next = uids[i] = writeNode(batch.get(i), next);
+            }
+            if (tailUid != 0) {
+                Node tail = Node.loadNode(BPlusTree.this, tailUid);
+                tail.setSibling(uids[0]);
+                tail.release();
+            }
+            if (leaf) {
+                // 左兄弟要等左边的节点写入后才知道，逐个补上
+                for (int i = 0; i < n; i++) {
+                    long left = i == 0 ? tailUid : uids[i - 1];
+                    if (left != 0) {
+                        Node node = Node.loadNode(BPlusTree.this, uids[i]);
+                        node.setLeft(left);
+                        node.release();
+                    }
+                }
+            }
+            tailUid = uids[n - 1];
+            written += n;
+            if (parent == null) {
+                parent = new LevelBuilder(false, budget);
+            }
+            for (int i = 0; i < n; i++) {
+                parent.add(batchKeys.get(i), uids[i]);
+            }
+            batch.clear();
+            batchKeys.clear();
+        }
+
+        private long writeNode(Node.Entries e, long sibling) throws Exception {
+            SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+            Node.setRawIsLeaf(raw, leaf);
+            Node.setRawSibling(raw, sibling);
+            Node.writeEntries(raw, e, 0, e.size());
+            return dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+        }
+    }
+
+    /**
+     * 从最左边的叶子开始沿兄弟指针扫描整个叶子层，统计填充情况
+     */
+    public LeafStats leafStats() throws Exception {
+        long leaves = 0, entries = 0, used = 0;
+        int slot = reclaimer.enter();
+        try {
+            long leafUid = searchLeaf(rootUid(), new byte[0]);
+            while (leafUid != 0) {
+                Node leaf = Node.loadNode(this, leafUid);
+                leaf.rLock();
+                try {
+                    leaves++;
+                    entries += Node.getRawNoKeys(leaf.raw);
+                    used += leaf.usedSize();
+                    leafUid = Node.getRawSibling(leaf.raw);
+                } finally {
+                    leaf.rUnlock();
+                    leaf.release();
+                }
+            }
+        } finally {
+            reclaimer.exit(slot);
+        }
+        return new LeafStats(leaves, entries, used, leaves * nodeSize);
+    }
+
+    // 能插入的最长 key
+    public int maxKeySize() {
+        return Node.maxKeySize(nodeSize);
     }
 
     public void close() {
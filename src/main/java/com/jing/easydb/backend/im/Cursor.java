@@ -0,0 +1,273 @@
+package com.jing.easydb.backend.im;
+
+import com.jing.easydb.backend.im.Node.LeafSearchRangeRes;
+
+import java.util.Arrays;
+
+/**
+ * B+ 树的范围游标，顺着叶子的兄弟指针向右扫描；降序的游标顺着左兄弟指针向左扫描
+ * <p>
+ * 每次取出一个叶子中落在范围内的全部 uid，放进复用的 long 数组中逐个返回，
+ * 同一时刻只引用当前这一个叶子，扫描多大的范围占用的内存都不变
+ * <pre>
+ * try (Cursor cursor = tree.cursor(left, right, 0)) {
+ *     while (cursor.next()) {
+ *         long uid = cursor.uid();
+ *     }
+ * }
+ * </pre>
+ * 游标打开期间，合并掉的结点都不会被回收，所以游标要尽快关闭。游标不是线程安全的
+ * <p>
+ * 向左移动时持有当前叶子的读锁读取它的左兄弟：左兄弟的分裂与合并都要锁住当前叶子来修改 LeftUid，
+ * 这时读到的就是真正的左兄弟。写入者总是从左到右加锁，这里对左兄弟只尝试加锁，锁不到就放开重来，不会死锁。
+ * 当前叶子已经被合并进左边时，从根重新查找它的第一个 key，跳过已经返回过的 uid
+ */
+public class Cursor implements AutoCloseable {
+    private final BPlusTree tree;
+    private final byte[] leftKey, rightKey;
+    private long remaining; // 还能返回的 uid 个数，小于 0 表示不限制
+    private final boolean descending;
+
+    private Node leaf; // 当前引用着的叶子，扫描结束后为 null
+    private final LeafSearchRangeRes res = new LeafSearchRangeRes();
+    private int pos;
+    private long uid;
+    private int epochSlot; // 在 Reclaimer 中登记的位置，关闭后为 -1
+
+    // 降序时已经返回的最小的 key 及返回过的等于它的 uid，当前叶子被合并后用来重新定位
+    private byte[] bound;
+    private long[] seen = new long[0];
+
+    // 降序的游标自己查找起始的叶子，不使用 leafUid
+    Cursor(BPlusTree tree, long leafUid, byte[] leftKey, byte[] rightKey, long limit, boolean descending,
+           int epochSlot) throws Exception {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.remaining = limit > 0 ? limit : -1;
+        this.descending = descending;
+        this.epochSlot = epochSlot;
+        if (descending) {
+            bound = rightKey;
+            switchTo(locate(rightKey));
+        } else {
+            load(leafUid);
+        }
+    }
+
+    /**
+     * 移动到下一个 uid
+     *
+     * @return 范围内没有更多的 uid，或已经返回了 limit 个时返回 false
+     */
+    public boolean next() throws Exception {
+        if (remaining == 0) {
+            close();
+            return false;
+        }
+        if (descending) {
+            return prev();
+        }
+        while (pos == res.count) {
+            if (leaf == null) {
+                return false;
+            }
+            long siblingUid = res.siblingUid;
+            if (siblingUid == 0) {
+                close();
+                return false;
+            }
+            // 先读入兄弟，再释放当前叶子
+            load(siblingUid);
+        }
+        uid = res.uids[pos++];
+        if (remaining > 0) {
+            remaining--;
+        }
+        return true;
+    }
+
+    private boolean prev() throws Exception {
+        // 关闭后 pos 为 0，不能再从 res 里取
+        if (leaf == null) {
+            return false;
+        }
+        while (pos < 0) {
+            if (res.siblingUid == 0) {
+                close();
+                return false;
+            }
+            moveLeft();
+        }
+        uid = res.uids[pos--];
+        if (remaining > 0) {
+            remaining--;
+        }
+        return true;
+    }
+
+    // 读入当前叶子的左兄弟
+    private void moveLeft() throws Exception {
+        while (true) {
+            Node cur = leaf;
+            Node left = null;
+            boolean dead;
+            cur.rLock();
+            try {
+                dead = cur.isDead();
+                if (!dead) {
+                    long leftUid = Node.getRawLeft(cur.raw);
+                    if (leftUid == 0) {
+                        res.count = 0;
+                        res.siblingUid = 0;
+                        pos = -1;
+                        return;
+                    }
+                    left = Node.loadNode(tree, leftUid);
+                    if (left.tryRLock()) {
+                        try {
+                            left.leafSearchRangeBackRaw(leftKey, rightKey, res);
+                        } finally {
+                            left.rUnlock();
+                        }
+                        switchTo(left);
+                        return;
+                    }
+                }
+            } finally {
+                cur.rUnlock();
+            }
+            if (dead) {
+                relocate();
+                return;
+            }
+            // 左兄弟正在被修改，放开当前叶子让写入者完成
+            left.release();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 当前叶子已经被合并进左边，它的内容也在那里。找到 bound 最后可能出现的叶子，
+     * 只取其中不大于 bound 的部分，并跳过已经返回过的等于 bound 的 uid
+     */
+    private void relocate() throws Exception {
+        Node n = locate(bound);
+        int kept = res.count - res.tailEq;
+        for (int i = kept; i < res.count; i++) {
+            long u = res.uids[i];
+            if (!contains(seen, u)) {
+                res.uids[kept++] = u;
+            }
+        }
+        res.count = kept;
+        switchTo(n);
+    }
+
+    /**
+     * 找到 key 最后可能出现的叶子，把其中不大于 key 的部分读进 res，key 为 null 时是最右的叶子。
+     * 从根找到叶子之后、加上读锁之前，叶子可能已经分裂，不大于 key 的项可能被移到了新的右兄弟，
+     * 所以加锁之后沿兄弟指针向右，直到右兄弟的第一个 key 大于 key。这里和写入者一样从左到右加锁
+     */
+    private Node locate(byte[] key) throws Exception {
+        byte[] target = key == null ? tree.maxKey() : key;
+        Node n = null;
+        try {
+            while (true) {
+                if (n == null) {
+                    Node found = Node.loadNode(tree, tree.searchLeaf(tree.rootUid(), target, false));
+                    found.rLock();
+                    n = found;
+                }
+                if (n.isDead()) {
+                    // 已经被合并进左边，从根重新查找
+                    n.rUnlock();
+                    n.release();
+                    n = null;
+                    continue;
+                }
+                long siblingUid = Node.getRawSibling(n.raw);
+                if (siblingUid == 0) {
+                    break;
+                }
+                Node sibling = Node.loadNode(tree, siblingUid);
+                sibling.rLock();
+                if (!sibling.leafStartsNotAfter(key)) {
+                    sibling.rUnlock();
+                    sibling.release();
+                    break;
+                }
+                n.rUnlock();
+                n.release();
+                n = sibling;
+            }
+            n.leafSearchRangeBackRaw(leftKey, key, res);
+        } finally {
+            if (n != null) {
+                n.rUnlock();
+            }
+        }
+        return n;
+    }
+
+    // 切换到已经读取到 res 中的叶子 n，范围延续到它的开头时更新 bound 和 seen
+    private void switchTo(Node n) {
+        if (leaf != null) {
+            leaf.release();
+        }
+        leaf = n;
+        pos = res.count - 1;
+        if (res.firstKey == null) {
+            return;
+        }
+        long[] head = Arrays.copyOf(res.uids, Math.min(res.headEq, res.count));
+        if (bound != null && Arrays.equals(res.firstKey, bound)) {
+            // 重复的 key 跨过了叶子
+            long[] all = Arrays.copyOf(seen, seen.length + head.length);
+            System.arraycopy(head, 0, all, seen.length, head.length);
+            seen = all;
+        } else {
+            seen = head;
+        }
+        bound = res.firstKey;
+    }
+
+    private static boolean contains(long[] a, long v) {
+        for (long x : a) {
+            if (x == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 当前的 uid，在 next 返回 true 之后调用
+    public long uid() {
+        return uid;
+    }
+
+    private void load(long leafUid) throws Exception {
+        Node next = Node.loadNode(tree, leafUid);
+        if (leaf != null) {
+            leaf.release();
+        }
+        leaf = next;
+        leaf.leafSearchRange(leftKey, rightKey, res);
+        pos = 0;
+    }
+
+    // 释放当前叶子的引用，可以重复调用
+    @Override
+    public void close() {
+        if (leaf != null) {
+            leaf.release();
+            leaf = null;
+        }
+        res.count = 0;
+        pos = 0;
+        if (epochSlot >= 0) {
+            tree.reclaimer.exit(epochSlot);
+            epochSlot = -1;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.jing.easydb.backend.im;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 解码后的内部结点缓存
+ * <p>
+ * 每次查找都要经过根和各层内部结点，这几层很少变化。命中时直接在解码好的 key 数组上二分，
+ * 不经过 DataManager，也不分配 Node；点查只有叶子需要读取数据项。
+ * <p>
+ * 内部结点每次修改之后都调用 {@link #invalidate(long)}，它先推进代数再移除条目。
+ * 解码前记下代数，放入时代数没有变化才放入，这样与修改并发的解码不会留下过期的条目。
+ * 容量满了之后不再放入新的条目，每次查找都从根开始，所以留在缓存中的是最上面几层
+ */
+class InnerNodeCache {
+
+    static final int CAPACITY = 256;
+
+    // 子结点的类型，第一次经过时才知道
+    static final int UNKNOWN = 0;
+    static final int INNER = 1;
+    static final int LEAF = 2;
+
+    static final class Entry {
+        final byte[][] keys; // null 表示正无穷
+        final long[] sons;
+        final long sibling;
+        volatile int childKind = UNKNOWN;
+
+        Entry(byte[][] keys, long[] sons, long sibling) {
+            this.keys = keys;
+            this.sons = sons;
+            this.sibling = sibling;
+        }
+
+        /**
+         * 与 {@link Node#searchNext(byte[], boolean)} 相同的规则查找子结点，key 不在这个结点的范围内时返回 0，
+         * 应当转向 sibling
+         */
+        long route(byte[] key, boolean leftmost) {
+            int lo = 0, hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = keys[mid] == null ? 1 : Arrays.compareUnsigned(keys[mid], key);
+                if (cmp < 0 || (!leftmost && cmp == 0)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo < sons.length ? sons[lo] : 0;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> map = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    Entry get(long uid) {
+        return map.get(uid);
+    }
+
+    // 解码之前取得的代数，交给 put
+    long generation() {
+        return generation.get();
+    }
+
+    // 自 generation() 返回 gen 以来没有内部结点被修改过时才放入
+    void put(long uid, Entry entry, long gen) {
+        if (map.size() >= CAPACITY) {
+            return;
+        }
+        map.compute(uid, (k, cur) -> generation.get() == gen ? entry : cur);
+    }
+
+    // 内部结点被修改了，调用时仍然持有它的锁
+    void invalidate(long uid) {
+        generation.incrementAndGet();
+        map.remove(uid);
+    }
+}
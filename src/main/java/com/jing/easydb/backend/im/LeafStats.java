@@ -0,0 +1,30 @@
+package com.jing.easydb.backend.im;
+
+/**
+ * 叶子层的填充统计，由 {@link BPlusTree#leafStats()} 沿兄弟指针扫描整个叶子层得到
+ * 扫描期间的并发修改会让结果略有偏差，只用于观察索引的空间利用率
+ */
+public class LeafStats {
+    public final long leaves;      // 叶子个数
+    public final long entries;     // 叶子中 [key, uid] 的个数
+    public final long usedBytes;   // 叶子实际占用的字节数，不算删除留下的空洞
+    public final long totalBytes;  // 叶子的总长度
+
+    LeafStats(long leaves, long entries, long usedBytes, long totalBytes) {
+        this.leaves = leaves;
+        this.entries = entries;
+        this.usedBytes = usedBytes;
+        this.totalBytes = totalBytes;
+    }
+
+    // 平均填充率
+    public double fillFactor() {
+        return totalBytes == 0 ? 0 : (double) usedBytes / totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "leaves=" + leaves + ", entries=" + entries + ", used=" + usedBytes + "/" + totalBytes
+                + String.format(" (%.1f%%)", fillFactor() * 100);
+    }
+}
@@ -12,23 +12,68 @@ import java.util.List;
 
 /**
  * Node结构如下：
- * [LeafFlag][KeyNumber][SiblingUid] 1 + 2 + 8
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN] (8+8) * N
+ * [LeafFlag][KeyNumber][SiblingUid][LeftUid][PrefixLen][HeapStart] 1 + 2 + 8 + 8 + 2 + 2
+ * [Prefix] PrefixLen
+ * [Slot0][Slot1]...[SlotN] 12 * N，Slot = [KeyOffset 2][KeyLen 2][Son 8]
+ * ... 空闲 ...
+ * [Key 堆] 从节点末尾向前增长，HeapStart 是堆的起始位置
+ * <p>
+ * key 是按无符号字节序比较的变长字节串，long 类型的 key 由 {@link #longKey(long)} 转换。
+ * 节点中所有 key 的公共前缀只在 Prefix 中存一份，Key 堆中只存去掉前缀后的部分；
+ * 叶子分裂时向上提交的是能区分左右两半的最短前缀，而不是右半的完整首个 key。
+ * 内部节点最右的 key 可以是正无穷，KeyLen 为 INF_LEN，不占堆空间。
+ * <p>
+ * 节点的长度在创建时决定：新建的树让一个节点占满一个数据项所能用的最大长度，即每个节点独占一页；
+ * 分裂出的新节点与原节点等长，所以同一棵树中的节点大小一致
+ * <p>
+ * LeafFlag 的最低位表示叶子，次低位表示结点已经被合并进左边的兄弟：这样的结点内容和兄弟指针保持不变，
+ * 持有旧 uid 的查找仍然能读到正确的内容，写入者遇到它要从根重新开始
+ * <p>
+ * LeftUid 是叶子左边的兄弟，只有叶子维护，供降序扫描使用。它在分裂和合并时由持有左边结点锁的写入者
+ * 加锁修改，所以持有一个叶子的锁时，它的 LeftUid 就是当前真正的左兄弟
  */
 public class Node {
-    static final int IS_LEAF_OFFSET = 0; // 表示该节点是否为叶子节点
+    static final int IS_LEAF_OFFSET = 0; // 表示该节点是否为叶子节点，以及是否已经被合并
+    static final byte LEAF_FLAG = 1;
+    static final byte DEAD_FLAG = 2;
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1; // 表示该节点中key的个数
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2; // 表示节点的兄弟节点的UID属性
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8; // 表示节点头部的大小的常量
+    static final int LEFT_OFFSET = SIBLING_OFFSET + 8; // 叶子左边的兄弟节点的UID
+    static final int PREFIX_LEN_OFFSET = LEFT_OFFSET + 8; // 公共前缀的长度
+    static final int HEAP_OFFSET = PREFIX_LEN_OFFSET + 2; // key 堆的起始位置，相对节点开头
+    static final int NODE_HEADER_SIZE = HEAP_OFFSET + 2; // 表示节点头部的大小的常量
 
-    static final int BALANCE_NUMBER = 32; // 节点的平衡因子的常量，一个节点最多可以包含32个key
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 节点的大小
+    static final int SLOT_SIZE = 2 + 2 + 8;
+    static final int INF_LEN = 0xFFFF; // 正无穷 key 的长度标记
 
     BPlusTree tree;
     DataItem dataItem;  // raw的包装，[ValidFlag] [DataSize] [Data] ValidFlag 1字节，0为合法，1为非法 DataSize 2字节，标识Data的长度
     SubArray raw; // Node结点对应的二进制数据，结构参照类注释
     long uid;
 
+    /**
+     * 把 long 转换为按无符号字节序比较时顺序不变的 8 字节 key
+     */
+    static byte[] longKey(long key) {
+        byte[] buf = new byte[8];
+        Parser.putLong(buf, 0, key ^ Long.MIN_VALUE);
+        return buf;
+    }
+
+    /**
+     * 不超过 maxSize 的最大节点长度，节点内的偏移用2字节表示
+     */
+    static int nodeSize(int maxSize) {
+        return Math.min(maxSize, INF_LEN);
+    }
+
+    /**
+     * 长度为 nodeSize 的节点能接受的最长 key，保证任何一次插入之后都能分裂成两个放得下的节点
+     */
+    static int maxKeySize(int nodeSize) {
+        return (nodeSize - NODE_HEADER_SIZE) / 3 - SLOT_SIZE;
+    }
+
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if (isLeaf) {
             raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 1;
@@ -38,87 +83,296 @@ public class Node {
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & LEAF_FLAG) != 0;
+    }
+
+    static void setRawDead(SubArray raw) {
+        raw.raw[raw.start + IS_LEAF_OFFSET] |= DEAD_FLAG;
+    }
+
+    static boolean getRawIsDead(SubArray raw) {
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & DEAD_FLAG) != 0;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return Parser.getShort(raw.raw, raw.start + NO_KEYS_OFFSET) & 0xFFFF;
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.getLong(raw.raw, raw.start + SIBLING_OFFSET);
+    }
+
+    static void setRawLeft(SubArray raw, long left) {
+        Parser.putLong(raw.raw, raw.start + LEFT_OFFSET, left);
+    }
+
+    static long getRawLeft(SubArray raw) {
+        return Parser.getLong(raw.raw, raw.start + LEFT_OFFSET);
+    }
+
+    static int getRawPrefixLen(SubArray raw) {
+        return Parser.getShort(raw.raw, raw.start + PREFIX_LEN_OFFSET) & 0xFFFF;
+    }
+
+    private static int getRawHeap(SubArray raw) {
+        return Parser.getShort(raw.raw, raw.start + HEAP_OFFSET) & 0xFFFF;
+    }
+
+    private static void setRawHeap(SubArray raw, int heap) {
+        Parser.putShort(raw.raw, raw.start + HEAP_OFFSET, (short) heap);
+    }
+
+    // 第 kth 个 slot 的绝对位置
+    private static int slotOffset(SubArray raw, int kth) {
+        return raw.start + NODE_HEADER_SIZE + getRawPrefixLen(raw) + kth * SLOT_SIZE;
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, slotOffset(raw, kth) + 4, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.getLong(raw.raw, slotOffset(raw, kth) + 4);
     }
 
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    // 第 kth 个 key 去掉前缀后的长度，正无穷时为 INF_LEN
+    private static int getRawKthKeyLen(SubArray raw, int kth) {
+        return Parser.getShort(raw.raw, slotOffset(raw, kth) + 2) & 0xFFFF;
     }
 
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    // 第 kth 个 key 去掉前缀后在 raw.raw 中的绝对位置
+    private static int getRawKthKeyOffset(SubArray raw, int kth) {
+        return raw.start + (Parser.getShort(raw.raw, slotOffset(raw, kth)) & 0xFFFF);
     }
 
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+    /**
+     * 取出第 kth 个完整的 key（前缀 + 堆中的部分），正无穷返回 null
+     */
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int len = getRawKthKeyLen(raw, kth);
+        if (len == INF_LEN) {
+            return null;
+        }
+        int plen = getRawPrefixLen(raw);
+        byte[] key = new byte[plen + len];
+        System.arraycopy(raw.raw, raw.start + NODE_HEADER_SIZE, key, 0, plen);
+        System.arraycopy(raw.raw, getRawKthKeyOffset(raw, kth), key, plen, len);
+        return key;
     }
 
     /**
-     * 将 [son kth][key kth] 向后移动一个身位，将原本的位置空出来
+     * 在前 noKeys 个有序的 key 中二分查找，直接比较节点的原始字节
+     * strict 为 false 时返回第一个 >= key 的位置，为 true 时返回第一个 > key 的位置，都不存在时返回 noKeys
      */
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
+    static int searchRawKey(SubArray raw, int noKeys, byte[] key, boolean strict) {
+        byte[] buf = raw.raw;
+        int plen = getRawPrefixLen(raw);
+        int prefix = raw.start + NODE_HEADER_SIZE;
+        int c = Arrays.compareUnsigned(key, 0, Math.min(plen, key.length), buf, prefix, prefix + plen);
+        if (c < 0) {
+            // key 小于节点中所有的 key
+            return 0;
+        }
+        if (c > 0) {
+            // key 大于节点中所有有限的 key，只可能落在正无穷上
+            return noKeys > 0 && getRawKthKeyLen(raw, noKeys - 1) == INF_LEN ? noKeys - 1 : noKeys;
         }
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareRawKth(raw, mid, key, plen);
+            if (cmp < 0 || (strict && cmp == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // 第 kth 个 key 与 key[plen..] 比较，调用方保证 key 带有节点的前缀
+    private static int compareRawKth(SubArray raw, int kth, byte[] key, int plen) {
+        int slot = slotOffset(raw, kth);
+        int len = Parser.getShort(raw.raw, slot + 2) & 0xFFFF;
+        if (len == INF_LEN) {
+            return 1;
+        }
+        int off = raw.start + (Parser.getShort(raw.raw, slot) & 0xFFFF);
+        return Arrays.compareUnsigned(raw.raw, off, off + len, key, plen, key.length);
+    }
+
+    // 节点中空闲区域的大小
+    private static int freeSpace(SubArray raw, int noKeys) {
+        return getRawHeap(raw) - (NODE_HEADER_SIZE + getRawPrefixLen(raw) + noKeys * SLOT_SIZE);
+    }
+
+    // 是否带有节点的公共前缀，带有时 key 可以不重建节点直接放进来
+    private static boolean hasRawPrefix(SubArray raw, byte[] key) {
+        int plen = getRawPrefixLen(raw);
+        int prefix = raw.start + NODE_HEADER_SIZE;
+        return key.length >= plen && Arrays.equals(key, 0, plen, raw.raw, prefix, prefix + plen);
+    }
+
+    // 把 key 去掉前缀的部分放进堆中，返回相对节点开头的位置，调用方保证空间足够
+    private static int allocRawKey(SubArray raw, byte[] key) {
+        int plen = getRawPrefixLen(raw);
+        int heap = getRawHeap(raw) - (key.length - plen);
+        System.arraycopy(key, plen, raw.raw, raw.start + heap, key.length - plen);
+        setRawHeap(raw, heap);
+        return heap;
+    }
+
+    // 删除第 kth 个 slot，key 在堆中占用的空间等到重新排布时再回收
+    private static void removeRawSlot(SubArray raw, int noKeys, int kth) {
+        int slot = slotOffset(raw, kth);
+        System.arraycopy(raw.raw, slot + SLOT_SIZE, raw.raw, slot, (noKeys - kth - 1) * SLOT_SIZE);
+        setRawNoKeys(raw, noKeys - 1);
+    }
+
+    // 在 kth 处插入一个 slot，[kth, noKeys) 的 slot 向后移动一个身位
+    private static void insertRawSlot(SubArray raw, int noKeys, int kth, int keyOffset, int keyLen, long son) {
+        int slot = slotOffset(raw, kth);
+        System.arraycopy(raw.raw, slot, raw.raw, slot + SLOT_SIZE, (noKeys - kth) * SLOT_SIZE);
+        setRawSlot(raw, kth, keyOffset, keyLen, son);
+        setRawNoKeys(raw, noKeys + 1);
+    }
+
+    private static void setRawSlot(SubArray raw, int kth, int keyOffset, int keyLen, long son) {
+        int slot = slotOffset(raw, kth);
+        Parser.putShort(raw.raw, slot, (short) keyOffset);
+        Parser.putShort(raw.raw, slot + 2, (short) keyLen);
+        Parser.putLong(raw.raw, slot + 4, son);
     }
 
     /**
-     * @param left  根节点的第一颗子树
-     * @param right 根节点的最右子树, key默认是Long.MAX_VALUE
-     * @param key   根节点的第一颗子树对应的索引key
+     * 节点的逻辑内容：有序的 [key][son] 列表，用于需要重新排布节点的插入和分裂
+     */
+    static class Entries {
+        List<byte[]> keys = new ArrayList<>(); // null 表示正无穷
+        List<Long> sons = new ArrayList<>();
+
+        void add(int i, byte[] key, long son) {
+            keys.add(i, key);
+            sons.add(i, son);
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        // [from, to) 中有限 key 的公共前缀长度，key 有序时只需比较首尾
+        int prefixLen(int from, int to) {
+            int last = to - 1;
+            if (last >= from && keys.get(last) == null) {
+                last--;
+            }
+            if (last < from) {
+                return 0;
+            }
+            return commonPrefixLen(keys.get(from), keys.get(last));
+        }
+
+        // [from, to) 按节点格式编码后的长度
+        int encodedSize(int from, int to) {
+            int plen = prefixLen(from, to);
+            int size = NODE_HEADER_SIZE + plen + (to - from) * SLOT_SIZE;
+            for (int i = from; i < to; i++) {
+                byte[] k = keys.get(i);
+                if (k != null) {
+                    size += k.length - plen;
+                }
+            }
+            return size;
+        }
+    }
+
+    static Entries readEntries(SubArray raw) {
+        Entries e = new Entries();
+        int noKeys = getRawNoKeys(raw);
+        for (int i = 0; i < noKeys; i++) {
+            e.keys.add(getRawKthKey(raw, i));
+            e.sons.add(getRawKthSon(raw, i));
+        }
+        return e;
+    }
+
+    /**
+     * 把 [from, to) 编码进 raw，重新计算公共前缀并整理 key 堆；标志位和兄弟节点由调用方设置
+     */
+    static void writeEntries(SubArray raw, Entries e, int from, int to) {
+        int plen = e.prefixLen(from, to);
+        if (to > from && plen > 0) {
+            System.arraycopy(e.keys.get(from), 0, raw.raw, raw.start + NODE_HEADER_SIZE, plen);
+        }
+        Parser.putShort(raw.raw, raw.start + PREFIX_LEN_OFFSET, (short) plen);
+        setRawNoKeys(raw, to - from);
+        int heap = raw.end - raw.start;
+        for (int i = from; i < to; i++) {
+            byte[] k = e.keys.get(i);
+            if (k == null) {
+                setRawSlot(raw, i - from, 0, INF_LEN, e.sons.get(i));
+                continue;
+            }
+            heap -= k.length - plen;
+            System.arraycopy(k, plen, raw.raw, raw.start + heap, k.length - plen);
+            setRawSlot(raw, i - from, heap, k.length - plen, e.sons.get(i));
+        }
+        setRawHeap(raw, heap);
+    }
+
+    // 两个 key 的公共前缀长度
+    static int commonPrefixLen(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int m = Arrays.mismatch(a, 0, n, b, 0, n);
+        return m < 0 ? n : m;
+    }
+
+    /**
+     * 叶子分裂时向上提交的分隔 key：满足 left < sep <= right 的最短的 right 的前缀
+     * left 与 right 相等时（重复 key）只能返回 right
+     */
+    static byte[] separator(byte[] left, byte[] right) {
+        int m = commonPrefixLen(left, right);
+        if (m >= right.length) {
+            return right;
+        }
+        return Arrays.copyOf(right, m + 1);
+    }
+
+    /**
+     * @param nodeSize 节点的长度
+     * @param left     根节点的第一颗子树
+     * @param right    根节点的最右子树, key 为正无穷
+     * @param key      根节点的第一颗子树对应的索引key
      * @return 创建根节点对应的二进制数据
      */
-    static byte[] newRootRaw(long left, long right, long key) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(int nodeSize, long left, long right, byte[] key) {
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+        Entries e = new Entries();
+        e.add(0, key, left);
+        e.add(1, null, right);
 
         setRawIsLeaf(raw, false);
-        setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        writeEntries(raw, e, 0, 2);
 
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int nodeSize) {
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
 
         setRawIsLeaf(raw, true);
-        setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
+        writeEntries(raw, new Entries(), 0, 0);
 
         return raw.raw;
     }
@@ -145,207 +399,554 @@ public class Node {
         dataItem.release();
     }
 
+    // 结点是否为叶子在创建时就确定了，之后不会改变，不需要加锁
     public boolean isLeaf() {
-        dataItem.rLock();
+        return getRawIfLeaf(raw);
+    }
+
+    // 修改兄弟指针，记录日志
+    void setSibling(long sibling) {
+        dataItem.before();
+        setRawSibling(raw, sibling);
+        afterModify();
+    }
+
+    // 修改左兄弟指针，记录日志
+    void setLeft(long left) {
+        dataItem.before();
+        setRawLeft(raw, left);
+        afterModify();
+    }
+
+    // 叶子 uid 的左兄弟变成了 left，调用时持有 left 的锁，按从左到右的顺序再锁住 uid
+    private void relinkLeft(long uid, long left) throws Exception {
+        Node n = loadNode(tree, uid);
+        n.lock();
         try {
-            return getRawIfLeaf(raw);
+            n.setLeft(left);
         } finally {
-            dataItem.rUnLock();
+            n.unlock();
+            n.release();
+        }
+    }
+
+    // 修改完成，记录日志；内部结点还要让解码缓存失效，此时仍然持有外层的锁
+    private void afterModify() {
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+        if (!isLeaf()) {
+            tree.innerCache.invalidate(uid);
+        }
+    }
+
+    // 对整个结点加写锁，持有期间可以多次修改，修改仍然要通过 before/after 记录日志
+    void lock() {
+        dataItem.lock();
+    }
+
+    void unlock() {
+        dataItem.unlock();
+    }
+
+    void rLock() {
+        dataItem.rLock();
+    }
+
+    void rUnlock() {
+        dataItem.rUnLock();
+    }
+
+    boolean tryRLock() {
+        return dataItem.tryRLock();
+    }
+
+    /**
+     * 再插入一个长度不超过 keyLen 的 key 一定不会分裂，调用时持有锁
+     * <p>
+     * 不考虑前缀压缩时的编码长度是重新排布后长度的上界，它放得下就不会分裂
+     */
+    boolean isSafe(int keyLen) {
+        int noKeys = getRawNoKeys(raw);
+        int finite = noKeys > 0 && getRawKthKeyLen(raw, noKeys - 1) == INF_LEN ? noKeys - 1 : noKeys;
+        int size = raw.end - raw.start;
+        long keyBytes = (size - getRawHeap(raw)) + (long) finite * getRawPrefixLen(raw);
+        return NODE_HEADER_SIZE + (long) (noKeys + 1) * SLOT_SIZE + keyBytes + keyLen <= size;
+    }
+
+    boolean isDead() {
+        return getRawIsDead(raw);
+    }
+
+    /**
+     * 结点中的内容实际占用的字节数，不算堆中已删除 key 留下的空洞，调用时持有锁
+     */
+    int usedSize() {
+        int noKeys = getRawNoKeys(raw);
+        int size = NODE_HEADER_SIZE + getRawPrefixLen(raw) + noKeys * SLOT_SIZE;
+        for (int i = 0; i < noKeys; i++) {
+            int len = getRawKthKeyLen(raw, i);
+            if (len != INF_LEN) {
+                size += len;
+            }
+        }
+        return size;
+    }
+
+    // 结点中第一个 key，没有 key 时返回 null
+    byte[] firstKey() {
+        return getRawNoKeys(raw) == 0 ? null : getRawKthKey(raw, 0);
+    }
+
+    // 内部结点中 son 的位置，不存在时返回 -1，调用时持有锁
+    int indexOfSon(long son) {
+        int noKeys = getRawNoKeys(raw);
+        for (int i = 0; i < noKeys; i++) {
+            if (getRawKthSon(raw, i) == son) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    class DeleteRes {
+        boolean found;
+        long siblingUid; // 没有找到，且重复的 key 可能延续到兄弟结点中时不为 0
+    }
+
+    /**
+     * 从叶子中删除一条 [key, uid]，调用时持有锁
+     */
+    DeleteRes deleteEntry(byte[] key, long uid) {
+        DeleteRes res = new DeleteRes();
+        int noKeys = getRawNoKeys(raw);
+        int kth = searchRawKey(raw, noKeys, key, false);
+        if (!hasRawPrefix(raw, key)) {
+            // 不带前缀的 key 小于或大于结点中所有的 key
+            if (kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        }
+        for (; kth < noKeys; kth++) {
+            if (compareRawKth(raw, kth, key, getRawPrefixLen(raw)) != 0) {
+                return res;
+            }
+            if (getRawKthSon(raw, kth) == uid) {
+                dataItem.before();
+                removeRawSlot(raw, noKeys, kth);
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                res.found = true;
+                return res;
+            }
+        }
+        res.siblingUid = getRawSibling(raw);
+        return res;
+    }
+
+    /**
+     * 把右边的兄弟 right 合并进当前结点，合并后的长度超过 limit 时不合并，返回 false，调用时持有两个结点的锁
+     * <p>
+     * right 被标记为已合并，内容和兄弟指针不变，由调用方从父结点中摘除
+     */
+    boolean mergeRight(Node right, int limit) throws Exception {
+        Entries e = readEntries(raw);
+        Entries r = readEntries(right.raw);
+        e.keys.addAll(r.keys);
+        e.sons.addAll(r.sons);
+        if (e.encodedSize(0, e.size()) > limit) {
+            return false;
+        }
+        long next = getRawSibling(right.raw);
+        dataItem.before();
+        writeEntries(raw, e, 0, e.size());
+        setRawSibling(raw, next);
+        afterModify();
+        if (getRawIfLeaf(raw) && next != 0) {
+            relinkLeft(next, uid);
+        }
+
+        right.markDead();
+        return true;
+    }
+
+    // 标记为已合并，记录日志，写入者之后对它的乐观校验都会失败
+    void markDead() {
+        dataItem.before();
+        setRawDead(raw);
+        afterModify();
+    }
+
+    /**
+     * 内部结点的第 kth 和 kth + 1 个子结点合并成了第 kth 个，合并后的结点覆盖两者的范围，
+     * 即 [k(kth), son(kth)] [k(kth+1), son(kth+1)] 变为 [k(kth+1), son(kth)]，调用时持有锁
+     */
+    void removeMergedSon(int kth) {
+        Entries e = readEntries(raw);
+        e.keys.remove(kth);
+        e.sons.remove(kth + 1);
+        dataItem.before();
+        writeEntries(raw, e, 0, e.size());
+        afterModify();
     }
 
     class SearchNextRes {
         long uid; // nodeUid，对应 SonN
         long siblingUid; // 同级结点(此处不必要，根据匹配规则，对应的key必然存在当前结点中)
+        long stamp; // 乐观读取时结点的版本，加读锁读取时为 0
+        boolean dead; // 读到的是已经被合并的结点
+        byte[] bound; // withBound 时为子结点 uid 的上界(不含)，null 表示正无穷
+    }
+
+    /**
+     * 查找存在该key的下一个结点
+     * leftmost 为 true 时取第一个 ik >= key 的子节点：重复的 key 在分裂后可能同时出现在分隔 key 两侧，
+     * 查找时要从最左边可能存在它的叶子开始，再沿兄弟节点向右扫描；插入时取第一个 ik > key 的子节点
+     */
+    public SearchNextRes searchNext(byte[] key, boolean leftmost) {
+        return searchNext(key, leftmost, false);
     }
 
-    // 查找存在该key的下一个结点
-    public SearchNextRes searchNext(long key) {
+    // withBound 为 true 时同时取出子结点的上界，与子结点在同一次读取中得到，校验时一并有效
+    SearchNextRes searchNext(byte[] key, boolean leftmost, boolean withBound) {
+        // 先不加锁乐观地读，多次被写入打断后再加读锁
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = dataItem.optimisticRead();
+            if (stamp == 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            SearchNextRes res;
+            try {
+                res = searchNextRaw(key, leftmost, withBound);
+            } catch (RuntimeException e) {
+                // 读到了写了一半的结点，偏移越界
+                continue;
+            }
+            if (dataItem.validate(stamp)) {
+                res.stamp = stamp;
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            SearchNextRes res = new SearchNextRes();
-            // 1、获取该Node结点的KeyNumber
+            return searchNextRaw(key, leftmost, withBound);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 解码内部结点交给 InnerNodeCache，已经被合并的结点返回 null，不能进入缓存
+     */
+    InnerNodeCache.Entry decode() {
+        dataItem.rLock();
+        try {
+            if (getRawIsDead(raw)) {
+                return null;
+            }
             int noKeys = getRawNoKeys(raw);
+            byte[][] keys = new byte[noKeys][];
+            long[] sons = new long[noKeys];
             for (int i = 0; i < noKeys; i++) {
-                // 2、获取该Node结点中的第 i 个 key
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {
-                    // 3.1、key在ik对应的区间里，查找到下一个装有key的Node结点
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+                keys[i] = getRawKthKey(raw, i);
+                sons[i] = getRawKthSon(raw, i);
             }
-            // 本 Node内所有key都查询了，BPlusTree中压根没有该结点
-            res.uid = 0;
-            // 从兄弟结点中继续查找
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
+            return new InnerNodeCache.Entry(keys, sons, getRawSibling(raw));
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    class LeafSearchRangeRes {
-        List<Long> uids; // 存放[leftKey,rightKey]中当前Node包含的部分
-        long siblingUid;
+    // 乐观读一个结点的最多尝试次数
+    static final int OPTIMISTIC_RETRIES = 4;
+
+    // 自 searchNext 读取时起结点没有被修改过，此时 res 中的子结点仍然是 key 所在的子树
+    boolean validate(SearchNextRes res) {
+        return dataItem.validate(res.stamp);
+    }
+
+    // 同 searchNext，调用方已经持有锁
+    SearchNextRes searchNextRaw(byte[] key, boolean leftmost) {
+        return searchNextRaw(key, leftmost, false);
+    }
+
+    private SearchNextRes searchNextRaw(byte[] key, boolean leftmost, boolean withBound) {
+        SearchNextRes res = new SearchNextRes();
+        res.dead = getRawIsDead(raw);
+        // 1、获取该Node结点的KeyNumber
+        int noKeys = getRawNoKeys(raw);
+        // 2、二分查找 key 所在的区间
+        int i = searchRawKey(raw, noKeys, key, !leftmost);
+        if (i < noKeys) {
+            // 3.1、key在ik对应的区间里，查找到下一个装有key的Node结点
+            res.uid = getRawKthSon(raw, i);
+            res.siblingUid = 0;
+            if (withBound) {
+                res.bound = getRawKthKey(raw, i);
+            }
+            return res;
+        }
+        // 本 Node内所有key都查询了，BPlusTree中压根没有该结点
+        res.uid = 0;
+        // 从兄弟结点中继续查找
+        res.siblingUid = getRawSibling(raw);
+        return res;
+    }
+
+    static class LeafSearchRangeRes {
+        long[] uids = new long[0]; // 存放[leftKey,rightKey]中当前Node包含的部分，[0, count) 有效，可以复用
+        int count;
+        long siblingUid; // 范围没有在当前结点中结束时，扫描方向上的下一个叶子
+        // 以下只有降序扫描使用
+        byte[] firstKey; // 范围从结点的第一个 key 开始时为这个 key，否则为 null
+        int headEq; // 范围开头与 firstKey 相等的个数
+        int tailEq; // 范围末尾与 rightKey 相等的个数
     }
 
     /**
-     * 确保调用该方法的一定是叶子结点,返回当前结点能够包含的 key列表，以及超出部分存放的兄弟结点
+     * 在叶子结点中查找 [leftKey, rightKey] 范围内的 uid，写入复用的 res 中
      *
      * @param leftKey  索引范围的最左索引 key
-     * @param rightKey 索引范围的最右索引 key
-     * @return LeafSearchRangeRes
+     * @param rightKey 索引范围的最右索引 key，null 表示没有上界
+     * @param res      结果，范围没有在当前结点中结束时 siblingUid 不为 0
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+    public void leafSearchRange(byte[] leftKey, byte[] rightKey, LeafSearchRangeRes res) {
         dataItem.rLock();
         try {
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
             // 1、找到大于等于且距离 leftKey 最近的key
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
-                kth++;
-            }
-            // 记录nodeUids,在其中包括 [leftKey,rightKey] 这些Key
-            List<Long> uids = new ArrayList<>();
-            // 2、第 K 个结点在当前Node的key列表中，说明leftKey在当前Node里
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    // 这种表明 rightKey不在当前结点中，表示还有其他结点也需要返回
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
-                    // 这种表明 rightKey也在当前结点的keys列表里
-                    break;
-                }
+            int kth = searchRawKey(raw, noKeys, leftKey, false);
+            // 2、第一个大于 rightKey 的位置，[kth, end) 都在范围内
+            int end = rightKey == null ? noKeys : searchRawKey(raw, noKeys, rightKey, true);
+            int count = Math.max(end - kth, 0);
+            if (res.uids.length < count) {
+                res.uids = new long[Math.max(count, res.uids.length * 2)];
             }
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                // 存在一部分keys，不在当前结点中的情况
-                siblingUid = getRawSibling(raw);
+            for (int i = 0; i < count; i++) {
+                res.uids[i] = getRawKthSon(raw, kth + i);
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            return res;
+            res.count = count;
+            // 存在一部分keys，不在当前结点中的情况
+            res.siblingUid = kth + count == noKeys ? getRawSibling(raw) : 0;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    /**
+     * 降序扫描用，叶子为空或第一个 key 不大于 key 时，不大于 key 的项可能在这个叶子或更右边，
+     * key 为 null 表示没有上界，调用时持有读锁
+     */
+    boolean leafStartsNotAfter(byte[] key) {
+        if (key == null || getRawNoKeys(raw) == 0) {
+            return true;
+        }
+        return Arrays.compareUnsigned(getRawKthKey(raw, 0), key) <= 0;
+    }
+
+    /**
+     * 降序扫描用，同 leafSearchRange，uid 在 res 中仍按升序存放，调用时持有读锁。
+     * 范围从结点的第一个 key 开始时 res.siblingUid 为左边的兄弟，否则为 0
+     */
+    void leafSearchRangeBackRaw(byte[] leftKey, byte[] rightKey, LeafSearchRangeRes res) {
+        int noKeys = getRawNoKeys(raw);
+        int kth = searchRawKey(raw, noKeys, leftKey, false);
+        int end = rightKey == null ? noKeys : searchRawKey(raw, noKeys, rightKey, true);
+        int count = Math.max(end - kth, 0);
+        if (res.uids.length < count) {
+            res.uids = new long[Math.max(count, res.uids.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            res.uids[i] = getRawKthSon(raw, kth + i);
+        }
+        res.count = count;
+        res.siblingUid = kth == 0 ? getRawLeft(raw) : 0;
+
+        int plen = getRawPrefixLen(raw);
+        res.firstKey = kth == 0 && count > 0 ? getRawKthKey(raw, 0) : null;
+        res.headEq = 0;
+        while (res.firstKey != null && res.headEq < count && compareRawKth(raw, res.headEq, res.firstKey, plen) == 0) {
+            res.headEq++;
+        }
+        res.tailEq = 0;
+        if (rightKey != null && hasRawPrefix(raw, rightKey)) {
+            while (res.tailEq < count && compareRawKth(raw, end - 1 - res.tailEq, rightKey, plen) == 0) {
+                res.tailEq++;
+            }
+        }
+    }
+
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long newSon;
+        byte[] newKey;
     }
 
 
     /**
-     * 尝试在当前 Node 中插入 uid 和 key
+     * 在当前 Node 中插入 uid 和 key，调用方保证 key 属于这个结点：持有父结点的锁，或者确认过父结点没有变化
      *
      * @param uid Node的唯一表示
      * @param key Node对应的索引键
-     * @return 插入失败，返回兄弟结点 siblingUid； 插入成功，有分裂情况返回分裂结点，否则返回空数据
+     * @return 有分裂情况返回分裂结点，否则返回空数据
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before(); // 修改Node结点对应的实体DataItem，要拿写锁
         try {
-            success = insert(uid, key);
-            if (!success) {
-                // 插入没成功，返回兄弟结点
-                res.siblingUid = getRawSibling(raw);
+            int noKeys = getRawNoKeys(raw);
+            // 第一个不小于 key 的位置，key 比结点中的都大时放在最后，仍然小于父结点中的分隔 key
+            int kth = searchRawKey(raw, noKeys, key, false);
+            success = true;
+            // 放得下时直接插入，否则重新排布，仍然放不下就分裂
+            if (insertInPlace(noKeys, kth, uid, key)) {
                 return res;
             }
-            // 插入成功，判断是否需要继续分裂
-            if (needSplit()) {
-                try {
-                    SplitRes r = split();
+            try {
+                SplitRes r = insertAndRewrite(kth, uid, key);
+                if (r != null) {
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
-                    return res;
-                } catch (Exception e) {
-                    err = e;
-                    throw e;
                 }
-            } else {
                 return res;
+            } catch (Exception e) {
+                err = e;
+                throw e;
             }
         } finally {
             if (err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                afterModify();
             } else {
                 dataItem.unBefore();
             }
         }
     }
 
-    // 将 uid(实质为soni) 和 key(实质位keyi)插入到结点的指定位置
-    private boolean insert(long uid, long key) {
-        int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        // 遍历当前 Node 的所有 key
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
+    /**
+     * 把按 key 排好序的 [keys[from, to), uids[from, to)] 依次插入叶子，遇到第一个可能引起分裂的 key 就停下，
+     * 所有修改只记录一条日志，返回插入的个数。调用时持有锁，调用方保证这些 key 都属于这个叶子
+     */
+    int insertBatch(byte[][] keys, long[] uids, int from, int to) throws Exception {
+        boolean success = false;
+        int i = from;
+        dataItem.before();
+        try {
+            for (; i < to && isSafe(keys[i].length); i++) {
+                int noKeys = getRawNoKeys(raw);
+                int kth = searchRawKey(raw, noKeys, keys[i], false);
+                if (!insertInPlace(noKeys, kth, uids[i], keys[i])) {
+                    // isSafe 保证重新排布后放得下，不会分裂
+                    SplitRes r = insertAndRewrite(kth, uids[i], keys[i]);
+                    assert r == null;
+                }
+            }
+            success = true;
+            return i - from;
+        } finally {
+            if (success && i > from) {
+                afterModify();
             } else {
-                break;
+                dataItem.unBefore();
             }
         }
-        // 1、key超出当前结点能存放的范围且有兄弟结点，当前结点插入失败
-        if (kth == noKeys && getRawSibling(raw) != 0) return false;
+    }
 
-        // 2.1、未超出范围，且是叶子结点，将其插入对应的位置
+    /**
+     * key 带有节点的前缀且空闲区域足够时，直接插入 slot 并把 key 放进堆，不移动其他 key
+     */
+    private boolean insertInPlace(int noKeys, int kth, long uid, byte[] key) {
+        if (!hasRawPrefix(raw, key)
+                || freeSpace(raw, noKeys) < SLOT_SIZE + key.length - getRawPrefixLen(raw)) {
+            return false;
+        }
+        int keyOffset = allocRawKey(raw, key);
+        int keyLen = key.length - getRawPrefixLen(raw);
         if (getRawIfLeaf(raw)) {
-            // kth 向后移动一个身位
-            shiftRawKth(raw, kth);
-            // 将key插入到 kth 之前所在的威望值
-            setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
-            setRawNoKeys(raw, noKeys + 1);
+            // 2.1、叶子结点，将 [key][uid] 插入到 kth
+            insertRawSlot(raw, noKeys, kth, keyOffset, keyLen, uid);
         } else {
-            // 2.2、未超出范围，不是叶子结点,同上一样插入位置
-            long kk = getRawKthKey(raw, kth);
-            setRawKthKey(raw, key, kth); // 将key插入kth位置
-            shiftRawKth(raw, kth + 1); // 将kth+1的位置挪出来
-            setRawKthKey(raw, kk, kth + 1);
-            setRawKthSon(raw, uid, kth + 1);
-            setRawNoKeys(raw, noKeys + 1);
+            // 2.2、内部结点，kth 的 key 改为新 key，原来的 key 连同新的 son 放到 kth+1
+            int slot = slotOffset(raw, kth);
+            int oldOffset = Parser.getShort(raw.raw, slot) & 0xFFFF;
+            int oldLen = Parser.getShort(raw.raw, slot + 2) & 0xFFFF;
+            insertRawSlot(raw, noKeys, kth + 1, oldOffset, oldLen, uid);
+            setRawSlot(raw, kth, keyOffset, keyLen, getRawKthSon(raw, kth));
         }
         return true;
     }
 
-    // 判断当前结点空间是否足够，如果不够了需要扩容
-    private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
-    }
-
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        byte[] newKey;
     }
 
-    private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+    /**
+     * 解码整个节点后插入，重新计算前缀写回；放不下时分成两半，右半写入新节点，返回分裂结果，否则返回 null
+     */
+    private SplitRes insertAndRewrite(int kth, long uid, byte[] key) throws Exception {
+        Entries e = readEntries(raw);
+        if (getRawIfLeaf(raw)) {
+            e.add(kth, key, uid);
+        } else {
+            byte[] kk = e.keys.get(kth);
+            e.keys.set(kth, key);
+            e.add(kth + 1, kk, uid);
+        }
+        int size = raw.end - raw.start;
+        int n = e.size();
+        if (e.encodedSize(0, n) <= size) {
+            writeEntries(raw, e, 0, n);
+            return null;
+        }
+
+        int m = -1;
+        // 最右的结点插在了最后：key 单调递增，左半不会再有插入，尽量留满，新结点只放新插入的部分
+        boolean leaf = getRawIfLeaf(raw);
+        int inserted = leaf ? kth : kth + 1;
+        if (getRawSibling(raw) == 0 && inserted == n - 1) {
+            for (int cand = n - 1; cand > 0 && m < 0; cand--) {
+                if (e.encodedSize(0, cand) <= size && e.encodedSize(cand, n) <= size) {
+                    m = cand;
+                }
+            }
+        }
+        // 否则从中间向两侧找第一个两半都放得下的分裂点
+        int mid = n / 2;
+        for (int d = 0; d < n && m < 0; d++) {
+            for (int cand : new int[]{mid - d, mid + d}) {
+                if (cand > 0 && cand < n && e.encodedSize(0, cand) <= size && e.encodedSize(cand, n) <= size) {
+                    m = cand;
+                    break;
+                }
+            }
+        }
+        assert m > 0;
+
+        long next = getRawSibling(raw);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
+        setRawIsLeaf(nodeRaw, leaf);
+        setRawSibling(nodeRaw, next);
+        if (leaf) {
+            setRawLeft(nodeRaw, this.uid);
+        }
+        writeEntries(nodeRaw, e, m, n);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        writeEntries(raw, e, 0, m);
         setRawSibling(raw, son);
+        if (leaf && next != 0) {
+            relinkLeft(next, son);
+        }
 
         SplitRes res = new SplitRes();
         res.newSon = son; // 新结点对应的nodeUid
-        res.newKey = getRawKthKey(nodeRaw, 0); // 新结点的第一个key值
+        if (leaf) {
+            // 叶子向上提交最短的分隔 key
+            res.newKey = separator(e.keys.get(m - 1), e.keys.get(m));
+        } else {
+            // 内部结点左半最后一个 key 就是左右两半的分界
+            res.newKey = e.keys.get(m - 1);
+        }
         return res;
     }
 
@@ -356,8 +957,11 @@ public class Node {
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        sb.append("prefix: ").append(getRawPrefixLen(raw)).append("\n");
         for (int i = 0; i < KeyNumber; i++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            byte[] key = getRawKthKey(raw, i);
+            sb.append("son: ").append(getRawKthSon(raw, i))
+                    .append(", key: ").append(key == null ? "+inf" : Arrays.toString(key)).append("\n");
         }
         return sb.toString();
     }
@@ -0,0 +1,83 @@
+package com.jing.easydb.backend.im;
+
+import com.jing.easydb.backend.dm.DataManager;
+import com.jing.easydb.backend.tm.TransactionManagerImpl;
+import com.jing.easydb.backend.utils.Panic;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 被合并掉的结点的延迟回收
+ * <p>
+ * 不加锁的查找可能已经读到了某个结点的 uid 但还没有访问它，结点从树上摘下后不能马上释放。
+ * 每个操作开始时登记在当前纪元，结束时注销；在纪元 e 摘下的结点，等纪元推进到 e + 2，
+ * 即纪元 e 及之前开始的操作都已结束后，才交给 DataManager 释放
+ * <p>
+ * 只有两个纪元的操作可能同时存在，按纪元的奇偶分别计数；推进纪元要求上一个纪元的操作都已结束
+ */
+class Reclaimer {
+
+    private final DataManager dm;
+    private final LongAdder[] active = {new LongAdder(), new LongAdder()};
+    private volatile long epoch;
+
+    private final Lock lock = new ReentrantLock();
+    private final ArrayDeque<long[]> retired = new ArrayDeque<>(); // [uid, 摘下时的纪元]，受 lock 保护
+    private volatile int pending; // retired 的长度，不为 0 时操作结束时顺便尝试回收
+
+    Reclaimer(DataManager dm) {
+        this.dm = dm;
+    }
+
+    // 操作开始，之后才能读取 rootUid，返回值交给 exit
+    int enter() {
+        int slot = (int) (epoch & 1);
+        active[slot].increment();
+        return slot;
+    }
+
+    void exit(int slot) {
+        active[slot].decrement();
+        if (pending > 0) {
+            reclaim();
+        }
+    }
+
+    // 结点已经从父结点和兄弟链表中摘下，等待回收
+    void retire(long uid) {
+        lock.lock();
+        try {
+            retired.add(new long[]{uid, epoch});
+            pending = retired.size();
+        } finally {
+            lock.unlock();
+        }
+        reclaim();
+    }
+
+    private void reclaim() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long e = epoch;
+            // 纪元 e - 1 的操作都已结束才能推进到 e + 1
+            if (active[(int) ((e + 1) & 1)].sum() == 0) {
+                epoch = ++e;
+            }
+            while (!retired.isEmpty() && retired.peek()[1] + 2 <= e) {
+                try {
+                    dm.free(TransactionManagerImpl.SUPER_XID, retired.poll()[0]);
+                } catch (Exception ex) {
+                    Panic.panic(ex);
+                }
+            }
+            pending = retired.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -63,7 +63,7 @@ public class TransactionManagerImpl implements TransactionManager {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
+        this.xidCounter = Parser.getLong(buf.array(), 0);
         long end = getXidPosition(this.xidCounter + 1);
         if (end != fileLen) {
             Panic.panic(Error.BadXIDFileException);
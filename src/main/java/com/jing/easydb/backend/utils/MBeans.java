@@ -0,0 +1,59 @@
+package com.jing.easydb.backend.utils;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MBeans {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger(0);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * 注册为 com.jing.easydb:type=type,name=name,id=实例编号
+     * 监控注册失败不影响调用方，返回null
+     */
+    public static ObjectName register(Object mbean, String type, String name) {
+        try {
+            ObjectName on = new ObjectName("com.jing.easydb:type=" + type + ",name=" + name
+                    + ",id=" + INSTANCES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, on);
+            return on;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 同 register，并且在 owner 不可达、被回收时自动注销，忘记关闭的 owner 不会一直留在 MBeanServer 中
+     * owner 关闭时调用返回值的 clean() 注销，只会注销一次；mbean 不能引用 owner，否则 owner 永远不会被回收
+     */
+    public static Cleaner.Cleanable register(Object owner, Object mbean, String type, String name) {
+        return register(owner, mbean, type, name, () -> {
+        });
+    }
+
+    /**
+     * 同上，注销之后再执行 cleanup，用来停掉 mbean 背后的线程；cleanup 同样不能引用 owner
+     */
+    public static Cleaner.Cleanable register(Object owner, Object mbean, String type, String name, Runnable cleanup) {
+        ObjectName on = register(mbean, type, name);
+        return CLEANER.register(owner, () -> {
+            unregister(on);
+            cleanup.run();
+        });
+    }
+
+    public static void unregister(ObjectName on) {
+        if (on == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException e) {
+            // 已经注销过了
+        }
+    }
+}
@@ -2,9 +2,18 @@ package com.jing.easydb.backend.utils;
 
 public class Types {
     // 通过pgno和offset来生成addressToUid
-    public static long addressToUid(int pgno, short offset) {
+    // 高32位是页号，低32位是页内偏移，页大小可达64k，偏移要用满32位
+    public static long addressToUid(int pgno, int offset) {
         long u0 = (long) pgno;
-        long u1 = (long) offset;
+        long u1 = (long) offset & 0xFFFFFFFFL;
         return u0 << 32 | u1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int) (uid >>> 32);
+    }
+
+    public static int uidToOffset(long uid) {
+        return (int) (uid & 0xFFFFFFFFL);
+    }
 }
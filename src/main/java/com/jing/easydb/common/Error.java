@@ -13,6 +13,16 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadDbFileException = new RuntimeException("Bad db file!");
+
+
+    // im
+    public static final Exception KeyTooLargeException = new RuntimeException("Key too large!");
+    public static final Exception TreeNotEmptyException = new RuntimeException("Tree is not empty!");
+    public static final Exception UnsortedKeysException = new RuntimeException("Keys are not sorted!");
+    public static final Exception InvalidFillFactorException = new RuntimeException("Invalid fill factor!");
+    public static final Exception BatchSizeMismatchException = new RuntimeException("Keys and uids differ in length!");
 
 
     // tm
@@ -1,33 +1,73 @@
 package com.jing.easydb.common;
 
-import java.nio.ByteBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 
+/**
+ * 基本类型与字节数组之间的编解码，统一使用大端序
+ * <p>
+ * get/put 系列直接在给定数组的 offset 处读写，基于 VarHandle 的字节数组视图，不分配任何对象，
+ * 热路径上应当使用它们；xxx2Byte/parseXxx 是旧的接口，需要一个独立数组时才使用
+ */
 public class Parser {
 
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] buf, int offset) {
+        return (short) SHORT.get(buf, offset);
+    }
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        SHORT.set(buf, offset, value);
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return (int) INT.get(buf, offset);
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        INT.set(buf, offset, value);
+    }
+
+    public static long getLong(byte[] buf, int offset) {
+        return (long) LONG.get(buf, offset);
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        LONG.set(buf, offset, value);
+    }
+
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[Short.BYTES];
+        putShort(buf, 0, value);
+        return buf;
     }
 
     public static short parseShort(byte[] buf) {
-        return ByteBuffer.wrap(buf, 0, 2).getShort();
+        return getShort(buf, 0);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[Integer.BYTES];
+        putInt(buf, 0, value);
+        return buf;
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return getInt(buf, 0);
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return getLong(buf, 0);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[Long.BYTES];
+        putLong(buf, 0, value);
+        return buf;
     }
 
 }
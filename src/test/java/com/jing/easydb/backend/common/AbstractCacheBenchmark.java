@@ -0,0 +1,97 @@
+package com.jing.easydb.backend.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存命中路径的争用测试：对比 AbstractCache 与全局锁实现的 LockingCache
+ * 所有 key 预先加载并额外持有一个引用，测试期间只有 get + release 的命中路径
+ * <p>
+ * 运行: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jing.easydb.backend.common.AbstractCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbstractCacheBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({"concurrent", "locking"})
+    public String impl;
+
+    private ConcurrentImpl concurrent;
+    private LockingImpl locking;
+
+    static class ConcurrentImpl extends AbstractCache<Long> {
+        ConcurrentImpl() {
+            super(KEYS);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    static class LockingImpl extends LockingCache<Long> {
+        LockingImpl() {
+            super(KEYS);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        concurrent = new ConcurrentImpl();
+        locking = new LockingImpl();
+        for (long key = 0; key < KEYS; key++) {
+            concurrent.get(key);
+            locking.get(key);
+        }
+    }
+
+    @Benchmark
+    public Long getRelease() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(KEYS);
+        if ("concurrent".equals(impl)) {
+            Long v = concurrent.get(key);
+            concurrent.release(key);
+            return v;
+        } else {
+            Long v = locking.get(key);
+            locking.release(key);
+            return v;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(AbstractCacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.jing.easydb.backend.common;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AbstractCacheTest {
+
+    // 加载前阻塞在 gate 上，便于让多个线程同时错过同一个 key
+    static class SlowCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate;
+        boolean fail;
+
+        SlowCache(int maxResource, CountDownLatch gate) {
+            super(maxResource);
+            this.gate = gate;
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            started.countDown();
+            gate.await();
+            if (fail) {
+                throw new IllegalStateException("load failed: " + key);
+            }
+            return key * 10;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    @Test
+    public void testCoalescedLoad() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowCache cache = new SlowCache(10, gate);
+        int threads = 16;
+        CyclicBarrier ready = new CyclicBarrier(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger ok = new AtomicInteger(0);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    ready.await();
+                    if (cache.get(7) == 70L) ok.incrementAndGet();
+                    cache.release(7);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        awaitWaiters(cache, threads - 1);
+        gate.countDown();
+        done.await();
+        assert cache.loads.get() == 1;
+        assert ok.get() == threads;
+        cache.close();
+    }
+
+    @Test
+    public void testFailedLoadFailsAllWaiters() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowCache cache = new SlowCache(10, gate);
+        cache.fail = true;
+        int threads = 8;
+        CyclicBarrier ready = new CyclicBarrier(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger failed = new AtomicInteger(0);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    ready.await();
+                    cache.get(3);
+                } catch (IllegalStateException e) {
+                    failed.incrementAndGet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        awaitWaiters(cache, threads - 1);
+        gate.countDown();
+        done.await();
+        assert cache.loads.get() == 1;
+        assert failed.get() == threads;
+
+        // 失败之后不会留下加载状态，下一次 get 会重新加载
+        cache.fail = false;
+        assert cache.get(3) == 30L;
+        cache.release(3);
+        cache.close();
+    }
+
+    // 等加载者进入 getForCache，并且其余线程都已经取到了它的 future，之后它们只会等待这一次加载的结果
+    private static void awaitWaiters(SlowCache cache, int waiters) throws InterruptedException {
+        cache.started.await();
+        while (cache.getStats().snapshot().coalescedWaits < waiters) {
+            Thread.yield();
+        }
+    }
+
+    static class CountingCache extends AbstractCache<Long> {
+        int loads;
+        List<Long> evicted = new ArrayList<>();
+
+        CountingCache(int maxResource) {
+            super(maxResource);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            loads++;
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            evicted.add(obj);
+        }
+    }
+
+    @Test
+    public void testUnreferencedEntriesStayResident() throws Exception {
+        CountingCache cache = new CountingCache(4);
+        for (int round = 0; round < 3; round++) {
+            for (long key = 0; key < 4; key++) {
+                cache.get(key);
+                cache.release(key);
+            }
+        }
+        assert cache.loads == 4;
+        assert cache.evicted.isEmpty();
+        cache.close();
+    }
+
+    @Test
+    public void testClockEvictsUnreferencedEntry() throws Exception {
+        CountingCache cache = new CountingCache(4);
+        // 0~2 一直被引用，只有 3 可以被驱逐
+        for (long key = 0; key < 3; key++) {
+            cache.get(key);
+        }
+        cache.get(3);
+        cache.release(3);
+
+        cache.get(4);
+        assert cache.evicted.size() == 1 && cache.evicted.get(0) == 3L;
+
+        // 所有条目都被引用时才会缓存满
+        boolean full = false;
+        try {
+            cache.get(5);
+        } catch (RuntimeException e) {
+            full = true;
+        }
+        assert full;
+
+        cache.release(4);
+        assert cache.get(5) == 5L;
+        assert cache.evicted.get(1) == 4L;
+        cache.close();
+    }
+
+    // 写回 key 为 1 的条目时阻塞在 gate 上
+    static class BlockingFlushCache extends AbstractCache<Long> {
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> events = new ArrayList<>();
+
+        BlockingFlushCache(int maxResource) {
+            super(maxResource);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            synchronized (events) {
+                events.add("load " + key);
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            if (obj == 1L) {
+                flushing.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            synchronized (events) {
+                events.add("flush " + obj);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteBackOutsideLock() throws Exception {
+        BlockingFlushCache cache = new BlockingFlushCache(2);
+        for (long key = 1; key <= 2; key++) {
+            cache.get(key);
+            cache.release(key);
+        }
+        Thread evictor = new Thread(() -> {
+            try {
+                cache.get(3);
+                cache.release(3);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        evictor.start();
+        cache.flushing.await();
+
+        // 1 的写回阻塞着，其他 key 的未命中照常驱逐、加载
+        assert cache.get(4) == 4L;
+        cache.release(4);
+
+        Thread reloader = new Thread(() -> {
+            try {
+                cache.get(1);
+                cache.release(1);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        reloader.start();
+        cache.gate.countDown();
+        evictor.join();
+        reloader.join();
+
+        // 1 写回完成之后才会被重新加载
+        assert cache.events.indexOf("flush 1") < cache.events.lastIndexOf("load 1");
+        cache.close();
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        CountingCache cache = new CountingCache(2);
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        CacheStats.Snapshot s = cache.getStats().snapshot();
+        assert s.hits == 1 && s.misses == 2 && s.pinned == 2 && s.loadCount == 2;
+
+        cache.release(1);
+        cache.release(1);
+        cache.get(3);
+        s = cache.getStats().snapshot();
+        assert s.evictions == 1 && s.flushCount == 1 && s.pinned == 2;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.jing.easydb:type=Cache,name=CountingCache,*");
+        int before = server.queryNames(pattern, null).size();
+        assert before > 0;
+        cache.close();
+        assert server.queryNames(pattern, null).size() == before - 1;
+    }
+
+    @Test
+    public void testMBeanPerInstance() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.jing.easydb:type=Cache,name=CountingCache,*");
+        Set<ObjectName> before = server.queryNames(pattern, null);
+
+        // 同名的两个缓存各自注册，关闭一个不影响另一个
+        CountingCache a = new CountingCache(2);
+        CountingCache b = new CountingCache(2);
+        Set<ObjectName> both = server.queryNames(pattern, null);
+        assert both.size() == before.size() + 2;
+
+        a.close();
+        a.close();
+        Set<ObjectName> left = server.queryNames(pattern, null);
+        assert left.size() == before.size() + 1;
+        b.get(1);
+        assert server.getAttribute(left.stream().filter(n -> !before.contains(n)).findFirst().get(), "Misses").equals(1L);
+
+        b.close();
+        assert server.queryNames(pattern, null).equals(before);
+    }
+}
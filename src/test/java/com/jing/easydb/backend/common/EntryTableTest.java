@@ -0,0 +1,40 @@
+package com.jing.easydb.backend.common;
+
+import com.jing.easydb.backend.common.AbstractCache.Entry;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class EntryTableTest {
+
+    static Random random = new SecureRandom();
+
+    @Test
+    public void testAgainstHashMap() {
+        EntryTable<Long> table = new EntryTable<>(8);
+        Map<Long, Entry<Long>> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // 键空间不大，插入删除交替进行，墓碑和扩容都会被反复触发
+            long key = random.nextInt(2000) - 1000;
+            Entry<Long> e = table.get(key);
+            assert e == expected.get(key);
+            if (e == null) {
+                e = new Entry<>(key);
+                table.put(e);
+                expected.put(key, e);
+            } else if (random.nextBoolean()) {
+                table.remove(key, e);
+                expected.remove(key);
+            }
+        }
+        int[] n = {0};
+        table.forEach(e -> {
+            assert expected.get(e.key) == e;
+            n[0]++;
+        });
+        assert n[0] == expected.size();
+    }
+}
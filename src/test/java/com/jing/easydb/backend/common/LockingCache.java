@@ -0,0 +1,156 @@
+package com.jing.easydb.backend.common;
+
+import com.jing.easydb.common.Error;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 全局锁 + HashMap 实现的引用计数缓存，即并发改造前的 AbstractCache，仅作为 AbstractCacheBenchmark 的对照组
+ */
+public abstract class LockingCache<T> {
+    private HashMap<Long, T> cache;                     // 实际缓存的数据
+    private HashMap<Long, Integer> references;          // 元素的引用个数
+    private HashMap<Long, CompletableFuture<T>> getting; // 正在从外存加载的资源，等待者阻塞在对应的future上
+
+    private int maxResource;                            // 缓存的最大缓存资源数
+    private int count = 0;                              // 缓存中元素的个数
+    private Lock lock;
+
+    public LockingCache(int maxResource) {
+        this.maxResource = maxResource;
+        cache = new HashMap<>();
+        references = new HashMap<>();
+        getting = new HashMap<>();
+        lock = new ReentrantLock();
+    }
+
+    protected T get(long key) throws Exception {
+        CompletableFuture<T> loading;
+        while (true) {
+            lock.lock();
+            loading = getting.get(key);
+            if (loading != null) {
+                // 请求的资源正在被其他线程获取
+                // 即已经有其他的线程在从外存加载数据到缓存，那么本线程就阻塞在它的future上，加载完成后直接被唤醒
+                lock.unlock();
+                awaitLoading(loading);
+                continue;
+            }
+            if (cache.containsKey(key)) {
+                // 资源在缓存中，直接返回
+                T obj = cache.get(key);
+                references.put(key, references.get(key) + 1);
+                lock.unlock();
+                return obj;
+            }
+
+            // 尝试获取该资源
+            if (maxResource > 0 && count == maxResource) {
+                lock.unlock();
+                throw Error.CacheFullException;
+            }
+            count++;
+            loading = new CompletableFuture<>();
+            getting.put(key, loading);
+            lock.unlock();
+            break;
+        }
+
+        T obj = null;
+        try {
+            obj = getForCache(key);
+        } catch (Throwable e) {
+            lock.lock();
+            count--;
+            getting.remove(key);
+            lock.unlock();
+            // 加载失败，所有等待该资源的线程一起失败
+            loading.completeExceptionally(e);
+            throw e;
+        }
+
+        lock.lock();
+        getting.remove(key);
+        cache.put(key, obj);
+        references.put(key, 1);
+        lock.unlock();
+        loading.complete(obj);
+
+        return obj;
+    }
+
+    /**
+     * 等待其他线程加载资源，加载失败时抛出加载者遇到的异常
+     * 加载成功后由调用方重新走一遍 get 的流程来增加引用计数
+     */
+    private void awaitLoading(CompletableFuture<T> loading) throws Exception {
+        try {
+            loading.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof java.lang.Error) {
+                throw (java.lang.Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 强行释放一个缓存
+     */
+    protected void release(long key) {
+        lock.lock();
+        try {
+            int ref = references.get(key) - 1;
+            if (ref == 0) {
+                T obj = cache.get(key);
+                releaseForCache(obj);
+                references.remove(key);
+                cache.remove(key);
+                count--;
+            } else {
+                references.put(key, ref);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭缓存，写回所有资源
+     */
+    protected void close() {
+        lock.lock();
+        try {
+            Set<Long> keys = cache.keySet();
+            for (long key : keys) {
+                T obj = cache.get(key);
+                releaseForCache(obj);
+                references.remove(key);
+                cache.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 当资源不在缓存时的获取行为
+     */
+    protected abstract T getForCache(long key) throws Exception;
+
+    /**
+     * 当资源被驱逐时的写回行为
+     * 即释放缓存时，需要把脏页面写回
+     */
+    protected abstract void releaseForCache(T obj);
+}
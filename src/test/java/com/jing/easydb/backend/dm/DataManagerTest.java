@@ -3,6 +3,7 @@ package com.jing.easydb.backend.dm;
 import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.dm.pageCache.PageCache;
+import com.jing.easydb.backend.dm.pageCache.PageCacheOptions;
 import com.jing.easydb.backend.tm.MockTransactionManager;
 import com.jing.easydb.backend.tm.TransactionManager;
 import com.jing.easydb.backend.utils.Panic;
@@ -116,6 +117,95 @@ public class DataManagerTest {
         new File("/tmp/TESTDMSingle.log").delete();
     }
 
+    @Test
+    public void testFreePageAfterCrash() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMFreePage", PageCache.PAGE_SIZE * 10, tm0);
+        // 独占一整页的数据项，释放后整页可以复用
+        byte[] data = new byte[dm0.maxDataSize()];
+        long uid = dm0.insert(0, data);
+        dm0.free(0, uid);
+        long reused = dm0.insert(0, data);
+        assert reused >>> 32 == uid >>> 32;
+        dm0.free(0, reused);
+
+        // 不关闭直接重新打开，模拟崩溃：清空页面有日志，恢复后仍然可以复用
+        DataManager dm1 = DataManager.open("/tmp/TestDMFreePage", PageCache.PAGE_SIZE * 10, tm0);
+        assert dm1.insert(0, data) >>> 32 == uid >>> 32;
+        dm1.close();
+
+        assert new File("/tmp/TestDMFreePage.db").delete();
+        assert new File("/tmp/TestDMFreePage.log").delete();
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        for (int pageSize : new int[]{PageCache.MIN_PAGE_SIZE, PageCache.MAX_PAGE_SIZE}) {
+            TransactionManager tm0 = new MockTransactionManager();
+            PageCacheOptions options = PageCacheOptions.defaults();
+            options.pageSize = pageSize;
+            DataManager dm0 = DataManager.create("/tmp/TESTDMPageSize", pageSize * 20L, tm0, options);
+            // 接近一整页的数据项，64k页上偏移和长度都超过了short的范围
+            byte[] big = RandomUtil.randomBytes(pageSize - 16);
+            List<byte[]> datas = new ArrayList<>();
+            List<Long> uids = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                datas.add(big);
+                uids.add(dm0.insert(0, big));
+            }
+            for (int i = 0; i < 500; i++) {
+                byte[] data = RandomUtil.randomBytes(100 + i % 50);
+                datas.add(data);
+                uids.add(dm0.insert(0, data));
+            }
+            dm0.close();
+
+            // 打开时从文件头读出页大小
+            dm0 = DataManager.open("/tmp/TESTDMPageSize", pageSize * 20L, tm0);
+            for (int i = 0; i < uids.size(); i++) {
+                DataItem di = dm0.read(uids.get(i));
+                SubArray sa = di.data();
+                assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+                di.release();
+            }
+            dm0.close();
+
+            assert new File("/tmp/TESTDMPageSize.db").length() % pageSize == 0;
+            new File("/tmp/TESTDMPageSize.db").delete();
+            new File("/tmp/TESTDMPageSize.log").delete();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        PageCacheOptions options = PageCacheOptions.defaults();
+        options.compression = true;
+        DataManager dm0 = DataManager.create("/tmp/TESTDMCompression", PageCache.PAGE_SIZE * 20L, tm0, options);
+        List<byte[]> datas = new ArrayList<>();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = RandomUtil.randomBytes(100 + i % 50);
+            datas.add(data);
+            uids.add(dm0.insert(0, data));
+        }
+        dm0.close();
+
+        // 打开时根据 .pmap 识别压缩存储
+        dm0 = DataManager.open("/tmp/TESTDMCompression", PageCache.PAGE_SIZE * 20L, tm0);
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm0.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        dm0.close();
+
+        new File("/tmp/TESTDMCompression.db").delete();
+        new File("/tmp/TESTDMCompression.pmap").delete();
+        new File("/tmp/TESTDMCompression.log").delete();
+    }
+
     @Test
     public void testDMMulti() throws InterruptedException {
         TransactionManager tm0 = new MockTransactionManager();
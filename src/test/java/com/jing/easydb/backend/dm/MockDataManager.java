@@ -5,6 +5,7 @@ package com.jing.easydb.backend.dm;
 import com.jing.easydb.backend.common.SubArray;
 import com.jing.easydb.backend.dm.dataItem.DataItem;
 import com.jing.easydb.backend.dm.dataItem.MockDataItem;
+import com.jing.easydb.backend.dm.pageCache.PageCache;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -53,6 +54,21 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int maxDataSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
     @Override
     public void close() {}
 
@@ -72,6 +72,22 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public boolean tryRLock() {
+        return rLock.tryLock();
+    }
+
+    // 不支持乐观读，调用方总是退回到加读锁
+    @Override
+    public long optimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long version) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
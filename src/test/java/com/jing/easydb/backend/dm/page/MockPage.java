@@ -1,5 +1,6 @@
 package com.jing.easydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -47,4 +48,9 @@ public class MockPage implements Page {
         return data;
     }
 
+    @Override
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(data);
+    }
+
 }
@@ -61,4 +61,9 @@ public class MockPageCache implements PageCache {
     public void flushPage(Page pg) {
     }
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
 }
@@ -5,15 +5,27 @@ import com.jing.easydb.backend.utils.Panic;
 import com.jing.easydb.backend.utils.RandomUtil;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.Deflater;
 
 public class PageCacheTest {
 
@@ -43,6 +55,425 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCache pc = PageCache.createMapped("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 20);
+        for (int i = 0; i < 100; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.getData()[PageCache.PAGE_SIZE - 1] = (byte) -i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        // 文件按整个分段扩展，而不是每页扩展一次
+        assert new File("/tmp/pcacher_mapped_test.db").length() == MappedPageCache.CHUNK_SIZE;
+        pc.truncateByBgno(90);
+        assert pc.getPageNumber() == 90;
+        pc.close();
+        assert new File("/tmp/pcacher_mapped_test.db").length() == PageCache.PAGE_SIZE * 90L;
+
+        // 文件格式相同，用普通的 PageCache 也能打开
+        pc = PageCache.open("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 20);
+        assert pc.getPageNumber() == 90;
+        for (int i = 1; i <= 90; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte) (i - 1);
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) -(i - 1);
+            pg.release();
+        }
+        pc.close();
+
+        pc = PageCache.openMapped("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 20);
+        byte[] last = new byte[PageCache.PAGE_SIZE];
+        last[0] = 1;
+        int pgno = pc.newPage(last);
+        assert pgno == 91;
+        Page pg = pc.getPage(45);
+        assert pg.getData()[0] == (byte) 44;
+        pg.release();
+        pc.close();
+
+        // 异常退出时文件停在分段边界，末尾的全零页不计入页数
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_mapped_test.db", "rw")) {
+            raf.setLength(MappedPageCache.CHUNK_SIZE);
+        }
+        pc = PageCache.openMapped("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 20);
+        assert pc.getPageNumber() == 91;
+        pc.close();
+        assert new File("/tmp/pcacher_mapped_test.db").length() == PageCache.PAGE_SIZE * 91L;
+
+        assert new File("/tmp/pcacher_mapped_test.db").delete();
+    }
+
+    @Test
+    public void testCompressedPageCache() throws Exception {
+        CompressedPageCache pc = PageCache.createCompressed("/tmp/pcacher_compressed_test", PageCache.PAGE_SIZE * 20, PageCache.PAGE_SIZE);
+        Random random = new Random(1);
+        byte[] noise = new byte[PageCache.PAGE_SIZE];
+        for (int i = 0; i < 100; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            if (i % 10 == 0) {
+                // 随机数据压不下去，按原样存放
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, pg.getData(), 1, PageCache.PAGE_SIZE - 1);
+            }
+            pg.getData()[PageCache.PAGE_SIZE - 1] = (byte) -i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.truncateByBgno(90);
+        assert pc.getPageNumber() == 90;
+        pc.close();
+        // 只有9页是原样存放的
+        assert new File("/tmp/pcacher_compressed_test.db").length() < PageCache.PAGE_SIZE * 20L;
+
+        assert PageCache.isCompressed("/tmp/pcacher_compressed_test");
+        pc = PageCache.openCompressed("/tmp/pcacher_compressed_test", PageCache.PAGE_SIZE * 20);
+        assert pc.getPageSize() == PageCache.PAGE_SIZE;
+        assert pc.getPageNumber() == 90;
+        for (int i = 1; i <= 90; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte) (i - 1);
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) -(i - 1);
+            pg.release();
+        }
+        // 原地改写后槽位会变化，旧槽位被复用，文件不会一直增长
+        long stored = pc.getStoredBytes();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 1; i <= 90; i++) {
+                Page pg = pc.getPage(i);
+                pg.getData()[round + 1] = (byte) round;
+                pc.flushPage(pg);
+                pg.release();
+            }
+        }
+        assert pc.getStoredBytes() <= stored * 2;
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        assert pgno == 91;
+        pc.close();
+
+        pc = PageCache.openCompressed("/tmp/pcacher_compressed_test", PageCache.PAGE_SIZE * 20);
+        assert pc.getPageNumber() == 91;
+        Page pg = pc.getPage(45);
+        assert pg.getData()[0] == (byte) 44;
+        assert pg.getData()[5] == (byte) 4;
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_compressed_test.db").delete();
+        assert new File("/tmp/pcacher_compressed_test" + CompressedPageCache.MAP_SUFFIX).delete();
+    }
+
+    @Test(timeout = 10000)
+    public void testCompressedCorruptPage() throws Exception {
+        String path = "/tmp/pcacher_corrupt_test";
+        CompressedPageCache pc = PageCache.createCompressed(path, PageCache.PAGE_SIZE * 20, PageCache.PAGE_SIZE);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        pc.close();
+
+        // 把第一页换成需要预设字典的压缩数据，Inflater 不会再有任何进展
+        Deflater d = new Deflater();
+        d.setDictionary(new byte[]{1, 2, 3});
+        d.setInput(new byte[PageCache.PAGE_SIZE]);
+        d.finish();
+        byte[] bad = new byte[PageCache.PAGE_SIZE];
+        int len = d.deflate(bad);
+        try (RandomAccessFile map = new RandomAccessFile(path + CompressedPageCache.MAP_SUFFIX, "rw");
+             RandomAccessFile db = new RandomAccessFile(path + ".db", "rw")) {
+            map.seek(4);
+            long offset = map.readLong();
+            map.writeInt(len);
+            db.seek(offset);
+            db.write(bad, 0, len);
+        }
+
+        pc = PageCache.openCompressed(path, PageCache.PAGE_SIZE * 20);
+        boolean failed = false;
+        try {
+            pc.getPage(1);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assert failed;
+        Page pg = pc.getPage(2);
+        pg.release();
+        pc.close();
+
+        assert new File(path + ".db").delete();
+        assert new File(path + CompressedPageCache.MAP_SUFFIX).delete();
+    }
+
+    @Test
+    public void testConcurrentFlushAndLoad() throws Exception {
+        PageCache writer = PageCache.create("/tmp/pcacher_positional_test", PageCache.PAGE_SIZE * 16);
+        for (int i = 0; i < 64; i++) {
+            writer.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 每个线程只写自己的页，读写都不经过全局锁，互相交错
+        int threads = 8;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        AtomicInteger errors = new AtomicInteger(0);
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            new Thread(() -> {
+                try {
+                    for (int round = 1; round <= 20; round++) {
+                        for (int pgno = id + 1; pgno <= 64; pgno += threads) {
+                            Page pg = writer.getPage(pgno);
+                            Arrays.fill(pg.getData(), (byte) (pgno + round));
+                            pg.setDirty(true);
+                            writer.flushPage(pg);
+                            pg.release();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert errors.get() == 0;
+        writer.close();
+
+        PageCache pc = PageCache.open("/tmp/pcacher_positional_test", PageCache.PAGE_SIZE * 16);
+        for (int pgno = 1; pgno <= 64; pgno++) {
+            Page pg = pc.getPage(pgno);
+            byte[] expected = new byte[PageCache.PAGE_SIZE];
+            Arrays.fill(expected, (byte) (pgno + 20));
+            assert Arrays.equals(pg.getData(), expected);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_positional_test.db").delete();
+    }
+
+    @Test
+    public void testPageWriter() throws Exception {
+        PageCacheOptions options = PageCacheOptions.defaults();
+        options.pageWriterIntervalMs = 60_000; // 不等定时任务，手动触发一批
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_writer_test", PageCache.PAGE_SIZE * 20, options);
+        for (int i = 0; i < 40; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        for (int i = 1; i <= 10; i++) {
+            Page pg = pc.getPage(i);
+            pg.getData()[0] = (byte) i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        // 被引用着的页不会被写回
+        Page pinned = pc.getPage(11);
+        pinned.getData()[0] = (byte) 11;
+        pinned.setDirty(true);
+
+        assert pc.writeDirtyPages() == 10;
+        assert pc.getPageWriterStats().getBatches() == 1;
+        assert pc.getPageWriterStats().getWriteCalls() == 1; // 1~10 连续，一次聚集写
+        assert pinned.isDirty();
+        pinned.release();
+
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_writer_test.db", "r")) {
+            for (int i = 1; i <= 10; i++) {
+                raf.seek(pc.pageOffset(i));
+                assert raf.read() == i;
+            }
+        }
+
+        // 已写回的页在驱逐时是干净的
+        for (int i = 12; i <= 40; i++) {
+            pc.getPage(i).release();
+        }
+        assert pc.getStats().getEvictions() > 0;
+        assert pc.getStats().getDirtyWriteBacks() <= 1;
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_writer_test", PageCache.PAGE_SIZE * 20);
+        for (int i = 1; i <= 11; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte) i;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_writer_test.db").delete();
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        PageCacheOptions options = PageCacheOptions.defaults();
+        options.extentSize = PageCache.PAGE_SIZE * 32;
+        PageCache pc = PageCache.create("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, options);
+        File f = new File("/tmp/pcacher_extent_test.db");
+        for (int i = 1; i <= 40; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            assert pc.newPage(tmp) == i;
+        }
+        // 两个区段
+        assert f.length() == PageCache.PAGE_SIZE * 64L;
+        assert pc.getPageNumber() == 40;
+        for (int i = 1; i <= 40; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte) i;
+            pg.release();
+        }
+        pc.close();
+        assert f.length() == PageCache.PAGE_SIZE * 40L;
+
+        pc = PageCache.open("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, options);
+        assert pc.getPageNumber() == 40;
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        Page pg = pc.getPage(40);
+        pg.getData()[1] = 1;
+        pg.setDirty(true);
+        pc.flushPage(pg);
+        pg.release();
+        // 不关闭直接重新打开，模拟异常退出：末尾预分配的全零页不计入页数
+        assert f.length() == PageCache.PAGE_SIZE * 72L;
+        pc = PageCache.open("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, options);
+        assert pc.getPageNumber() == 40;
+        pc.close();
+
+        assert f.delete();
+    }
+
+    @Test
+    public void testUnclosedCacheCleaned() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName readAhead = new ObjectName("com.jing.easydb:type=ReadAhead,*");
+        ObjectName writer = new ObjectName("com.jing.easydb:type=PageWriter,*");
+        Set<ObjectName> readAheadBefore = server.queryNames(readAhead, null);
+        Set<ObjectName> writerBefore = server.queryNames(writer, null);
+        PageCacheOptions options = PageCacheOptions.defaults();
+        options.pageWriterIntervalMs = 10;
+        PageCache pc = PageCache.create("/tmp/pcacher_unclosed_test", PageCache.PAGE_SIZE * 20, options);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        assert server.queryNames(readAhead, null).size() == readAheadBefore.size() + 1;
+        assert server.queryNames(writer, null).size() == writerBefore.size() + 1;
+        assert threadsNamed("page-writer") == 1;
+
+        // 忘记关闭的缓存也能被回收，回收时注销 MBean，后台写回的线程也随之退出
+        WeakReference<PageCache> ref = new WeakReference<>(pc);
+        pc = null;
+        awaitCleaned(ref, () -> server.queryNames(readAhead, null).equals(readAheadBefore)
+                && server.queryNames(writer, null).equals(writerBefore)
+                && threadsNamed("page-writer") == 0);
+
+        assert new File("/tmp/pcacher_unclosed_test.db").delete();
+    }
+
+    private static long threadsNamed(String name) {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals(name)).count();
+    }
+
+    private static void awaitCleaned(WeakReference<?> ref, BooleanSupplier cleaned) throws InterruptedException {
+        for (int i = 0; i < 200 && (ref.get() != null || !cleaned.getAsBoolean()); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assert ref.get() == null;
+        assert cleaned.getAsBoolean();
+    }
+
+    @Test
+    public void testFrameArena() throws Exception {
+        PageCacheOptions options = PageCacheOptions.defaults();
+        options.frameArena = true;
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_arena_test", PageCache.PAGE_SIZE * 20, options);
+        for (int i = 0; i < 100; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 倒序访问，避开顺序预读，每次未命中都走帧池；被驱逐的页归还帧，100 页只用到池中的 20 个帧
+        Set<byte[]> frames = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 100; i >= 1; i--) {
+            Page pg = pc.getPage(i);
+            frames.add(pg.getData());
+            pg.getData()[0] = (byte) i;
+            pg.getData()[PageCache.PAGE_SIZE - 1] = (byte) -i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        assert frames.size() == 20;
+        assert pc.getArena().freeFrames() == 0;
+        pc.close();
+        assert pc.getArena().freeFrames() == 20;
+
+        pc = PageCache.open("/tmp/pcacher_arena_test", PageCache.PAGE_SIZE * 20, options);
+        for (int i = 100; i >= 1; i--) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte) i;
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) -i;
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_arena_test.db").delete();
+
+        // 缓存被引用的页占满时新页进不了缓存，临时分配给它的帧也要归还
+        options.extentSize = PageCache.PAGE_SIZE * 32;
+        pc = PageCache.create("/tmp/pcacher_arena_test", PageCache.PAGE_SIZE * 20, options);
+        List<Page> pinned = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            pinned.add(pc.getPage(pc.newPage(new byte[PageCache.PAGE_SIZE])));
+        }
+        assert pc.getArena().freeFrames() == 0;
+        byte[] tmp = new byte[PageCache.PAGE_SIZE];
+        tmp[0] = 1;
+        int pgno = pc.newPage(tmp);
+        assert pc.getArena().freeFrames() == 1;
+        for (Page pg : pinned) {
+            pg.release();
+        }
+        Page pg = pc.getPage(pgno);
+        assert pg.getData()[0] == 1;
+        pg.release();
+        pc.close();
+        assert pc.getArena().freeFrames() == 20;
+
+        assert new File("/tmp/pcacher_arena_test.db").delete();
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 50);
+        for (int i = 0; i < 300; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            tmp[PageCache.PAGE_SIZE - 1] = (byte) (i * 7);
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        PageCacheImpl pci = PageCache.open("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 50);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 300; i++) {
+                Page pg = pci.getPage(i);
+                assert pg.getData()[0] == (byte) (i - 1);
+                assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) ((i - 1) * 7);
+                if (round == 0 && i % 10 == 0) {
+                    // 改写一部分页，驱逐写回后再次扫描必须读到新内容
+                    pg.getData()[1] = (byte) 1;
+                    pg.setDirty(true);
+                }
+                if (round == 1) {
+                    assert pg.getData()[1] == (i % 10 == 0 ? (byte) 1 : (byte) 0);
+                }
+                pg.release();
+            }
+        }
+        assert pci.getReadAheadStats().getHits() > 0;
+        pci.close();
+
+        assert new File("/tmp/pcacher_readahead_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
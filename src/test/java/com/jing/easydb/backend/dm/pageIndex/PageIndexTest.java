@@ -22,4 +22,18 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testReplace() {
+        PageIndex pIndex = new PageIndex();
+        pIndex.add(7, 0);
+        pIndex.add(8, 1000);
+        // 页面被清空，替换掉空闲空间为0的旧项，而不是再加一项
+        pIndex.replace(7, PageCache.PAGE_SIZE - 4);
+        PageInfo pi = pIndex.select(2000);
+        assert pi != null && pi.pgno == 7;
+        pi = pIndex.select(500);
+        assert pi != null && pi.pgno == 8;
+        assert pIndex.select(1) == null;
+    }
 }
@@ -0,0 +1,83 @@
+package com.jing.easydb.backend.im;
+
+import com.jing.easydb.backend.dm.DataManager;
+import com.jing.easydb.backend.dm.pageCache.PageCache;
+import com.jing.easydb.backend.tm.MockTransactionManager;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程并发插入、查找 BPlusTree 的吞吐量，线程数从 1 到 32
+ * <p>
+ * 查找只在访问结点时做乐观读，不加锁；插入大多只锁住一个叶子，只有分裂时才从根开始锁耦合，
+ * 吞吐量应当随线程数增长，直到 CPU 核数或日志写入成为瓶颈
+ * <p>
+ * 运行: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jing.easydb.backend.im.BPlusTreeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BPlusTreeBenchmark {
+
+    private static final String PATH = "/tmp/BPlusTreeBenchmark";
+    private static final long PRELOAD = 200_000;
+
+    private DataManager dm;
+    private BPlusTree tree;
+    // 新插入的 key 从 PRELOAD 开始递增，打散后分布在整棵树上
+    private final AtomicLong next = new AtomicLong(PRELOAD);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dm = DataManager.create(PATH, PageCache.PAGE_SIZE * 4096L, new MockTransactionManager());
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for (long i = 0; i < PRELOAD; i++) {
+            tree.insert(scatter(i), i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dm.close();
+        new File(PATH + ".db").delete();
+        new File(PATH + ".log").delete();
+    }
+
+    // 把连续的序号映射成分散的 key，避免所有线程都插入最右的叶子
+    private static long scatter(long i) {
+        return Long.reverse(i);
+    }
+
+    @Benchmark
+    public List<Long> search() throws Exception {
+        return tree.search(scatter(ThreadLocalRandom.current().nextLong(PRELOAD)));
+    }
+
+    @Benchmark
+    public void insert() throws Exception {
+        long i = next.getAndIncrement();
+        tree.insert(scatter(i), i);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            Options opt = new OptionsBuilder()
+                    .include(BPlusTreeBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -4,11 +4,24 @@ import com.jing.easydb.backend.dm.DataManager;
 import com.jing.easydb.backend.dm.pageCache.PageCache;
 import com.jing.easydb.backend.tm.MockTransactionManager;
 import com.jing.easydb.backend.tm.TransactionManager;
+import com.jing.easydb.common.Error;
 import org.junit.Test;
 
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class BPlusTreeTest {
     @Test
@@ -31,7 +44,713 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
+        dm.close();
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeRandom() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeRandom", PageCache.PAGE_SIZE * 10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 乱序插入偶数 key，uid 取 key 的相反数
+        int lim = 5000;
+        List<Long> keys = new ArrayList<>();
+        for (long i = 0; i < lim; i++) {
+            keys.add(i * 2);
+        }
+        Random random = new Random(7);
+        Collections.shuffle(keys, random);
+        for (long key : keys) {
+            tree.insert(key, -key);
+        }
+
+        for (long i = 0; i < lim * 2; i++) {
+            List<Long> uids = tree.search(i);
+            if (i % 2 == 0) {
+                assert uids.size() == 1 && uids.get(0) == -i;
+            } else {
+                assert uids.isEmpty();
+            }
+        }
+        for (int round = 0; round < 200; round++) {
+            long left = random.nextInt(lim * 2);
+            long right = left + random.nextInt(300);
+            List<Long> uids = tree.searchRange(left, right);
+            long first = (left + 1) / 2 * 2;
+            long last = Math.min(right, (lim - 1) * 2L);
+            assert uids.size() == (first > last ? 0 : (last - first) / 2 + 1);
+            for (int j = 0; j < uids.size(); j++) {
+                assert uids.get(j) == -(first + j * 2L);
+            }
+        }
+
+        // 节点占满一页，5000个key只需要两层
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assert root.raw.end - root.raw.start > PageCache.PAGE_SIZE - 64;
+        assert !root.isLeaf();
+        Node leaf = Node.loadNode(tree, Node.getRawKthSon(root.raw, 0));
+        assert leaf.isLeaf();
+        leaf.release();
+        root.release();
+        dm.close();
+
+        assert new File("/tmp/TestTreeRandom.db").delete();
+        assert new File("/tmp/TestTreeRandom.log").delete();
+    }
+
+    @Test
+    public void testTreeBytesKey() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeBytesKey", PageCache.PAGE_SIZE * 10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 带有长公共前缀的字符串 key，乱序插入
+        int lim = 20000;
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < lim; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(11));
+        for (int id : ids) {
+            tree.insert(stringKey(id), id);
+        }
+
+        for (int i = 0; i < lim; i += 7) {
+            List<Long> uids = tree.search(stringKey(i));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        assert tree.search("customer/orders/".getBytes(StandardCharsets.UTF_8)).isEmpty();
+
+        // 字节序即字符串序，范围扫描按顺序返回
+        List<Long> uids = tree.searchRange(stringKey(1234), stringKey(5678));
+        assert uids.size() == 5678 - 1234 + 1;
+        for (int j = 0; j < uids.size(); j++) {
+            assert uids.get(j) == 1234 + j;
+        }
+        assert tree.searchRange(stringKey(lim - 10), null).size() == 10;
+
+        // 前缀只存一份，叶子节点中每个 key 只占很少的字节
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assert !root.isLeaf();
+        Node leaf = Node.loadNode(tree, Node.getRawKthSon(root.raw, 0));
+        assert Node.getRawPrefixLen(leaf.raw) >= "customer/orders/00".length();
+        leaf.release();
+        root.release();
+
+        byte[] tooLong = new byte[tree.maxKeySize() + 1];
+        try {
+            tree.insert(tooLong, 1);
+            assert false;
+        } catch (RuntimeException e) {
+            assert e == Error.KeyTooLargeException;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestTreeBytesKey.db").delete();
+        assert new File("/tmp/TestTreeBytesKey.log").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoad", PageCache.PAGE_SIZE * 10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 偶数 id 按序批量加载，含一段重复 key
+        int lim = 20000;
+        List<Map.Entry<byte[], Long>> sorted = new ArrayList<>();
+        for (int i = 0; i < lim; i += 2) {
+            sorted.add(new AbstractMap.SimpleEntry<>(stringKey(i), (long) i));
+            if (i == 1000) {
+                for (long j = 1; j < 1000; j++) {
+                    sorted.add(new AbstractMap.SimpleEntry<>(stringKey(i), -j));
+                }
+            }
+        }
+        tree.bulkLoad(sorted.iterator(), 0.9);
+
+        for (int i = 0; i < lim; i += 2) {
+            List<Long> uids = tree.search(stringKey(i));
+            assert uids.size() == (i == 1000 ? 1000 : 1) && uids.get(0) == i;
+        }
+        List<Long> uids = tree.searchRange(stringKey(2000), stringKey(3998));
+        assert uids.size() == 1000;
+        for (int j = 0; j < uids.size(); j++) {
+            assert uids.get(j) == 2000 + j * 2;
+        }
+        // 批量加载的叶子也有左兄弟指针
+        long expect = lim - 2;
+        try (Cursor cursor = tree.descendingCursor(stringKey(2000), null, 0)) {
+            while (cursor.next()) {
+                assert cursor.uid() == expect;
+                expect -= 2;
+            }
+        }
+        assert expect == 1998;
+
+        // 留出的空间供之后的插入使用，奇数 id 插入后仍然有序
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assert !root.isLeaf();
+        root.release();
+        for (int i = 1; i < lim; i += 2) {
+            tree.insert(stringKey(i), i);
+        }
+        uids = tree.searchRange(stringKey(5000), stringKey(5999));
+        assert uids.size() == 1000;
+        for (int j = 0; j < uids.size(); j++) {
+            assert uids.get(j) == 5000 + j;
+        }
+
+        try {
+            tree.bulkLoad(sorted.iterator(), 0.9);
+            assert false;
+        } catch (RuntimeException e) {
+            assert e == Error.TreeNotEmptyException;
+        }
+        BPlusTree other = BPlusTree.load(BPlusTree.create(dm), dm);
+        Collections.swap(sorted, 0, 1);
+        try {
+            other.bulkLoad(sorted.iterator(), 0.9);
+            assert false;
+        } catch (RuntimeException e) {
+            assert e == Error.UnsortedKeysException;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestBulkLoad.db").delete();
+        assert new File("/tmp/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestCursor", PageCache.PAGE_SIZE * 10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        int lim = 10000;
+        for (long i = lim - 1; i >= 0; i--) {
+            tree.insert(i, i);
+        }
+
+        // 跨越多个叶子的完整扫描
+        long expect = 100;
+        try (Cursor cursor = tree.cursor(100, 8000, 0)) {
+            while (cursor.next()) {
+                assert cursor.uid() == expect++;
+            }
+            assert !cursor.next();
+        }
+        assert expect == 8001;
+
+        // limit 截断，之后不再返回
+        expect = 500;
+        try (Cursor cursor = tree.cursor(Node.longKey(500), null, 2000)) {
+            while (cursor.next()) {
+                assert cursor.uid() == expect++;
+            }
+        }
+        assert expect == 2500;
+
+        // 提前结束，叶子的引用随 close 释放
+        Cursor cursor = tree.cursor(0, lim, 0);
+        assert cursor.next() && cursor.uid() == 0;
+        cursor.close();
+        assert !cursor.next();
+
+        try (Cursor empty = tree.cursor(lim, lim * 2, 0)) {
+            assert !empty.next();
+        }
+        dm.close();
+
+        assert new File("/tmp/TestCursor.db").delete();
+        assert new File("/tmp/TestCursor.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 多个线程交错插入不相交的 key 并查找刚插入的 key，叶子和根结点都会分裂
+        int threads = 8, perThread = 2500;
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts.add(new Thread(() -> {
+                try {
+                    List<Integer> ids = new ArrayList<>();
+                    for (int i = 0; i < perThread; i++) {
+                        ids.add(i * threads + id);
+                    }
+                    Collections.shuffle(ids, new Random(id));
+                    for (int i : ids) {
+                        tree.insert(stringKey(i), i);
+                        inserted.incrementAndGet();
+                        List<Long> uids = tree.search(stringKey(i));
+                        assert uids.size() == 1 && uids.get(0) == i;
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        ts.add(new Thread(() -> {
+            try {
+                // 扫描期间并发分裂的叶子也不能重复或遗漏，返回的 key 总是有序的
+                while (inserted.get() < threads * perThread) {
+                    long last = -1;
+                    try (Cursor cursor = tree.cursor(stringKey(0), null, 0)) {
+                        while (cursor.next()) {
+                            assert cursor.uid() > last;
+                            last = cursor.uid();
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }));
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assert error.get() == null : error.get();
+
+        List<Long> uids = tree.searchRange(stringKey(0), null);
+        assert uids.size() == threads * perThread;
+        for (int i = 0; i < uids.size(); i++) {
+            assert uids.get(i) == i;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestDelete", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        File db = new File("/tmp/TestDelete.db");
+
+        int lim = 10000;
+        for (int i = 0; i < lim; i++) {
+            tree.insert(stringKey(i), i);
+        }
+        long built = db.length();
+
+        // 删除奇数，偶数不受影响，范围扫描跳过已删除的 key
+        for (int i = 1; i < lim; i += 2) {
+            assert tree.delete(stringKey(i), i);
+        }
+        assert !tree.delete(stringKey(1), 1);
+        assert !tree.delete(stringKey(0), 1);
+        for (int i = 0; i < lim; i += 2) {
+            List<Long> uids = tree.search(stringKey(i));
+            assert uids.size() == 1 && uids.get(0) == i;
+            assert tree.search(stringKey(i + 1)).isEmpty();
+        }
+        List<Long> uids = tree.searchRange(stringKey(100), stringKey(299));
+        assert uids.size() == 100;
+
+        // 全部删除后叶子合并、根结点塌缩成一个叶子
+        for (int i = 0; i < lim; i += 2) {
+            assert tree.delete(stringKey(i), i);
+        }
+        assert tree.searchRange(stringKey(0), null).isEmpty();
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assert root.isLeaf();
+        root.release();
+
+        // 合并掉的结点所在的页被重新使用，文件不会成倍增长
+        for (int i = 0; i < lim; i++) {
+            tree.insert(stringKey(i), i);
+        }
+        assert db.length() < built + built / 4;
+        assert tree.searchRange(stringKey(0), null).size() == lim;
+        dm.close();
+
+        assert db.delete();
+        assert new File("/tmp/TestDelete.log").delete();
+    }
+
+    @Test
+    public void testDeleteConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestDeleteConcurrent", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 每个线程删除自己的一组 key 中的大部分，同时有线程扫描，合并过程中扫描结果保持有序
+        int threads = 4, perThread = 4000;
+        for (int i = 0; i < threads * perThread; i++) {
+            tree.insert(stringKey(i), i);
+        }
+        AtomicInteger done = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        int key = i * threads + id;
+                        if (key % 10 != 0) {
+                            assert tree.delete(stringKey(key), key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    done.incrementAndGet();
+                }
+            }));
+        }
+        ts.add(new Thread(() -> {
+            try {
+                while (done.get() < threads) {
+                    long last = -1;
+                    try (Cursor cursor = tree.cursor(stringKey(0), null, 0)) {
+                        while (cursor.next()) {
+                            assert cursor.uid() > last;
+                            last = cursor.uid();
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }));
+        ts.add(new Thread(() -> {
+            try {
+                while (done.get() < threads) {
+                    long last = Long.MAX_VALUE;
+                    int multiplesOfTen = 0;
+                    try (Cursor cursor = tree.descendingCursor(stringKey(0), null, 0)) {
+                        while (cursor.next()) {
+                            assert cursor.uid() < last;
+                            last = cursor.uid();
+                            if (last % 10 == 0) {
+                                multiplesOfTen++;
+                            }
+                        }
+                    }
+                    // 不删除的 key 在合并过程中一个都不会丢
+                    assert multiplesOfTen == threads * perThread / 10 : multiplesOfTen;
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }));
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assert error.get() == null : error.get();
+
+        List<Long> uids = tree.searchRange(stringKey(0), null);
+        assert uids.size() == threads * perThread / 10;
+        for (int i = 0; i < uids.size(); i++) {
+            assert uids.get(i) == i * 10L;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestDeleteConcurrent.db").delete();
+        assert new File("/tmp/TestDeleteConcurrent.log").delete();
+    }
+
+    @Test
+    public void testInnerNodeCache() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestInnerNodeCache", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 长 key 让树至少有三层，根的子结点也是内部结点
+        int lim = 3000;
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < lim; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(11));
+        for (int k : keys) {
+            tree.insert(longKey(k), k);
+        }
+        for (int i = 0; i < lim; i++) {
+            List<Long> uids = tree.search(longKey(i));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        InnerNodeCache.Entry root = tree.innerCache.get(tree.rootUid());
+        assert root != null && root.childKind == InnerNodeCache.INNER;
+
+        // 分裂和合并之后缓存中不能留下过期的结点
+        for (int i = 0; i < lim; i++) {
+            if (i % 10 != 0) {
+                assert tree.delete(longKey(i), i);
+            }
+        }
+        for (int i = 0; i < lim; i++) {
+            List<Long> uids = tree.search(longKey(i));
+            assert uids.size() == (i % 10 == 0 ? 1 : 0);
+        }
+        for (int i = 0; i < lim; i++) {
+            if (i % 10 != 0) {
+                tree.insert(longKey(i), i);
+            }
+        }
+        for (int i = 0; i < lim; i++) {
+            List<Long> uids = tree.search(longKey(i));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        assert tree.searchRange(longKey(0), null).size() == lim;
+        dm.close();
+
+        assert new File("/tmp/TestInnerNodeCache.db").delete();
+        assert new File("/tmp/TestInnerNodeCache.log").delete();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBatch", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 乱序的两批偶数 key，第二批与第一批各有一半重复
+        Random random = new Random(13);
+        int lim = 20000;
+        long[] keys = new long[lim];
+        long[] uids = new long[lim];
+        for (int i = 0; i < lim; i++) {
+            keys[i] = random.nextInt(lim) * 2L;
+            uids[i] = i;
+        }
+        tree.insertBatch(Arrays.copyOf(keys, lim / 2), Arrays.copyOf(uids, lim / 2));
+        tree.insertBatch(Arrays.copyOfRange(keys, lim / 2, lim), Arrays.copyOfRange(uids, lim / 2, lim));
+        Map<Long, Set<Long>> expected = new HashMap<>();
+        for (int i = 0; i < lim; i++) {
+            expected.computeIfAbsent(keys[i], k -> new HashSet<>()).add(uids[i]);
+        }
+
+        // 查找的 key 乱序、有重复，奇数 key 不存在
+        long[] probes = new long[lim];
+        for (int i = 0; i < lim; i++) {
+            probes[i] = random.nextInt(lim * 2);
+        }
+        List<List<Long>> found = tree.searchMany(probes);
+        assert found.size() == lim;
+        for (int i = 0; i < lim; i++) {
+            Set<Long> want = expected.getOrDefault(probes[i], Collections.emptySet());
+            assert found.get(i).size() == want.size();
+            assert new HashSet<>(found.get(i)).equals(want);
+            assert found.get(i).equals(tree.search(probes[i]));
+        }
+
+        try {
+            tree.insertBatch(new long[]{1, 2}, new long[]{1});
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.BatchSizeMismatchException;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestBatch.db").delete();
+        assert new File("/tmp/TestBatch.log").delete();
+    }
+
+    @Test
+    public void testRightmostSplit() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestRightmostSplit", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree increasing = BPlusTree.load(BPlusTree.create(dm), dm);
+        BPlusTree random = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 递增的 key 每次都插在最右的叶子末尾，分裂后左边的叶子几乎是满的
+        int lim = 20000;
+        List<Long> keys = new ArrayList<>();
+        for (long i = 0; i < lim; i++) {
+            increasing.insert(i, i);
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(17));
+        for (long k : keys) {
+            random.insert(k, k);
+        }
+        LeafStats inc = increasing.leafStats();
+        LeafStats rnd = random.leafStats();
+        assert inc.entries == lim && rnd.entries == lim;
+        assert inc.fillFactor() > 0.9 : inc;
+        assert inc.leaves < rnd.leaves : inc + " vs " + rnd;
+
+        for (int i = 0; i < lim; i++) {
+            List<Long> uids = increasing.search(i);
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        assert increasing.searchRange(0, lim).size() == lim;
+
+        // 不在末尾的插入仍然从中间分裂
+        for (long i = 0; i < lim; i += 2) {
+            increasing.insert(i, i + lim);
+        }
+        assert increasing.search(lim - 2).size() == 2;
+        assert increasing.leafStats().entries == lim + lim / 2;
+        dm.close();
+
+        assert new File("/tmp/TestRightmostSplit.db").delete();
+        assert new File("/tmp/TestRightmostSplit.log").delete();
+    }
+
+    @Test
+    public void testDescendingCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestDescendingCursor", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 每个 key 插入三次，重复的 key 会跨过叶子
+        int lim = 6000;
+        List<Long> keys = new ArrayList<>();
+        for (long i = 0; i < lim * 3; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(19));
+        for (long k : keys) {
+            tree.insert(k / 3, k);
+        }
+        assertDescending(tree, 100, 5000);
+
+        // 前 N 个
+        List<Long> top = new ArrayList<>();
+        try (Cursor cursor = tree.descendingCursor(Node.longKey(0), null, 10)) {
+            while (cursor.next()) {
+                top.add(cursor.uid());
+            }
+            // 返回 false 之后不再返回旧的 uid
+            assert !cursor.next();
+        }
+        assert top.size() == 10;
+        for (int i = 0; i < 10; i++) {
+            assert top.get(i) / 3 == lim - 1 - i / 3;
+        }
+        try (Cursor empty = tree.descendingCursor(lim, lim * 2, 0)) {
+            assert !empty.next();
+            assert !empty.next();
+        }
+
+        // 合并之后左兄弟指针仍然正确
+        for (long k = 0; k < lim * 3; k++) {
+            if (k % 7 != 0) {
+                assert tree.delete(Node.longKey(k / 3), k);
+            }
+        }
+        assertDescending(tree, 0, lim);
+        assertDescending(tree, 1000, 1000);
+        dm.close();
+
+        assert new File("/tmp/TestDescendingCursor.db").delete();
+        assert new File("/tmp/TestDescendingCursor.log").delete();
+    }
+
+    // 降序游标的结果与升序查找的结果相反
+    @Test
+    public void testDescendingCursorConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestDescendingCursorConcurrent", PageCache.PAGE_SIZE * 100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        // 先插入偶数，再并发插入奇数让叶子不断分裂，降序扫描时已有的偶数不能遗漏
+        int lim = 20000, threads = 4;
+        for (int i = 0; i < lim; i += 2) {
+            tree.insert(stringKey(i), i);
+        }
+        AtomicInteger running = new AtomicInteger(threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts.add(new Thread(() -> {
+                try {
+                    List<Integer> ids = new ArrayList<>();
+                    for (int i = id * 2 + 1; i < lim; i += threads * 2) {
+                        ids.add(i);
+                    }
+                    Collections.shuffle(ids, new Random(id));
+                    for (int i : ids) {
+                        tree.insert(stringKey(i), i);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        ts.add(new Thread(() -> {
+            try {
+                Random random = new Random(7);
+                while (running.get() > 0) {
+                    int right = random.nextInt(lim / 2) * 2;
+                    long last = Long.MAX_VALUE;
+                    int evens = 0;
+                    try (Cursor cursor = tree.descendingCursor(stringKey(0), stringKey(right), 0)) {
+                        while (cursor.next()) {
+                            assert cursor.uid() < last;
+                            last = cursor.uid();
+                            if (last % 2 == 0) {
+                                evens++;
+                            }
+                        }
+                    }
+                    assert evens == right / 2 + 1 : right + ": " + evens;
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }));
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assert error.get() == null : error.get();
+        dm.close();
+
+        assert new File("/tmp/TestDescendingCursorConcurrent.db").delete();
+        assert new File("/tmp/TestDescendingCursorConcurrent.log").delete();
+    }
+
+    private static void assertDescending(BPlusTree tree, long left, long right) throws Exception {
+        List<Long> asc = tree.searchRange(left, right);
+        List<Long> desc = new ArrayList<>();
+        try (Cursor cursor = tree.descendingCursor(left, right, 0)) {
+            while (cursor.next()) {
+                desc.add(cursor.uid());
+            }
+            assert !cursor.next();
+        }
+        Collections.reverse(desc);
+        assert asc.size() == desc.size() : asc.size() + " vs " + desc.size();
+        assert new HashSet<>(asc).equals(new HashSet<>(desc));
+        for (int i = 1; i < desc.size(); i++) {
+            assert desc.get(i - 1) / 3 <= desc.get(i) / 3;
+        }
+    }
+
+    private static byte[] longKey(int id) {
+        // 相邻的 key 共享很长的前缀，分隔 key 截不短，内部结点的扇出也小
+        return (String.format("%05d", id / 8) + "-".repeat(150) + String.format("%05d", id))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] stringKey(int id) {
+        return String.format("customer/orders/%08d", id).getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,83 @@
+package com.jing.easydb.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比调用方原来的写法（copyOfRange + ByteBuffer 解析、xxx2Byte + arraycopy 写入）与 Parser 的原地读写
+ * 模拟 Node 中读写 [Son][Key] 的访问模式
+ * <p>
+ * 运行: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jing.easydb.common.ParserBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    private static final int SLOTS = 64;
+
+    private byte[] raw;
+
+    @Setup
+    public void setup() {
+        raw = new byte[SLOTS * 16];
+        for (int i = 0; i < SLOTS; i++) {
+            Parser.putLong(raw, i * 16, i);
+            Parser.putLong(raw, i * 16 + 8, i * 31L);
+        }
+    }
+
+    @Benchmark
+    public long readByteBuffer() {
+        long sum = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            int offset = i * 16 + 8;
+            sum += ByteBuffer.wrap(Arrays.copyOfRange(raw, offset, offset + 8), 0, 8).getLong();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readInPlace() {
+        long sum = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            sum += Parser.getLong(raw, i * 16 + 8);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public byte[] writeByteBuffer() {
+        for (int i = 0; i < SLOTS; i++) {
+            byte[] b = ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(i * 31L).array();
+            System.arraycopy(b, 0, raw, i * 16 + 8, 8);
+        }
+        return raw;
+    }
+
+    @Benchmark
+    public byte[] writeInPlace() {
+        for (int i = 0; i < SLOTS; i++) {
+            Parser.putLong(raw, i * 16 + 8, i * 31L);
+        }
+        return raw;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ParserBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build();
+        new Runner(opt).run();
+    }
+}
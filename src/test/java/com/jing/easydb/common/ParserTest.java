@@ -0,0 +1,29 @@
+package com.jing.easydb.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ParserTest {
+
+    @Test
+    public void testInPlace() {
+        byte[] buf = new byte[32];
+        // 非对齐的偏移
+        Parser.putShort(buf, 1, (short) -2);
+        Parser.putInt(buf, 3, 0x12345678);
+        Parser.putLong(buf, 7, Long.MIN_VALUE + 5);
+        assert Parser.getShort(buf, 1) == (short) -2;
+        assert Parser.getInt(buf, 3) == 0x12345678;
+        assert Parser.getLong(buf, 7) == Long.MIN_VALUE + 5;
+
+        // 与原来 ByteBuffer 的大端序一致，已有的文件格式不变
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        assert bb.getShort(1) == (short) -2;
+        assert bb.getInt(3) == 0x12345678;
+        assert bb.getLong(7) == Long.MIN_VALUE + 5;
+        assert Parser.parseLong(Parser.long2Byte(-7L)) == -7L;
+        assert Parser.parseInt(Parser.int2Byte(-7)) == -7;
+        assert Parser.parseShort(Parser.short2Byte((short) 7)) == 7;
+    }
+}